@@ -0,0 +1,380 @@
+/*
+ * Copyright 2020 threadcat
+ *
+ *     https://github.com/threadcat/accumulating-record
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threadcat.acm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes committed {@link AcmTable} values as Arrow IPC file, readable by pyarrow, pandas or DuckDB.
+ * Single record batch holds one contiguous int64 or double vector per column
+ * with validity bitmap taken from row 'empty' status as recovered on attach, i.e. including committed bits.
+ * Rows are transposed in blocks.
+ * <pre>
+ * [ARROW1][schema message][record batch message][body][end of stream][footer][footer size][ARROW1]
+ * </pre>
+ *
+ * @author threadcat
+ */
+public class AcmArrowWriter {
+    static final byte[] MAGIC = "ARROW1".getBytes(StandardCharsets.US_ASCII);
+    private static final int BLOCK_ROWS = 4096;
+    // Arrow recommends 64 byte alignment of buffers
+    private static final int ALIGNMENT = 64;
+    private static final short METADATA_V5 = 4;
+    private static final byte HEADER_SCHEMA = 1;
+    private static final byte HEADER_RECORD_BATCH = 3;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_FLOATING_POINT = 3;
+    private static final short PRECISION_DOUBLE = 2;
+    private final AcmTable table;
+    private final String[] names;
+
+    public AcmArrowWriter(AcmTable table) {
+        this.table = table;
+        this.names = new String[table.columnCount()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "c" + i;
+        }
+    }
+
+    /**
+     * Overrides default column names 'c0', 'c1', ...
+     */
+    public void setNames(String... names) {
+        if (names.length != this.names.length) {
+            throw new AcmException(String.format("Expected %s column names, got %s", this.names.length, names.length));
+        }
+        System.arraycopy(names, 0, this.names, 0, names.length);
+    }
+
+    /**
+     * Writes all table rows from the start of the channel.
+     */
+    public void write(FileChannel channel) throws IOException {
+        int rows = table.getRows();
+        int columns = names.length;
+        long validitySize = align((rows + 7) / 8);
+        long valuesSize = align(8L * rows);
+        long bodySize = columns * (validitySize + valuesSize);
+        long[] nullCounts = new long[columns];
+        // File header and schema
+        FlatBuilder schemaBuilder = new FlatBuilder();
+        ByteBuffer schema = message(HEADER_SCHEMA, schemaBuilder, schema(schemaBuilder), 0L);
+        long position = writeFully(channel, ByteBuffer.wrap(Arrays.copyOf(MAGIC, 8)), 0L);
+        position = writeFully(channel, schema, position);
+        // Record batch metadata has fixed size, it is written after the body when null counts are known
+        long batchOffset = position;
+        int metadataSize = recordBatch(rows, validitySize, valuesSize, nullCounts, bodySize).remaining();
+        long body = batchOffset + metadataSize;
+        writeBody(channel, body, validitySize, valuesSize, nullCounts);
+        writeFully(channel, recordBatch(rows, validitySize, valuesSize, nullCounts, bodySize), batchOffset);
+        position = body + bodySize;
+        ByteBuffer eos = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putInt(-1).putInt(0).flip();
+        position = writeFully(channel, eos, position);
+        // Footer
+        FlatBuilder builder = new FlatBuilder();
+        int schemaOffset = schema(builder);
+        builder.startVector(24, 1, 8);
+        builder.prep(8, 24);
+        builder.putLong(bodySize);
+        builder.pad(4);
+        builder.putInt(metadataSize);
+        builder.putLong(batchOffset);
+        int batches = builder.endVector();
+        builder.startVector(24, 0, 8);
+        int dictionaries = builder.endVector();
+        builder.startTable(4);
+        builder.addOffset(3, batches);
+        builder.addOffset(2, dictionaries);
+        builder.addOffset(1, schemaOffset);
+        builder.addShort(0, METADATA_V5);
+        ByteBuffer footer = builder.finish(builder.endTable());
+        int footerSize = footer.remaining();
+        position = writeFully(channel, footer, position);
+        ByteBuffer tail = ByteBuffer.allocate(4 + MAGIC.length).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(footerSize).put(MAGIC).flip();
+        position = writeFully(channel, tail, position);
+        channel.truncate(position);
+    }
+
+    // Transposing rows in blocks, each block is written as a slice of every column vector.
+    private void writeBody(FileChannel channel, long body, long validitySize, long valuesSize, long[] nullCounts) throws IOException {
+        int rows = table.getRows();
+        int columns = names.length;
+        ByteBuffer[] values = new ByteBuffer[columns];
+        ByteBuffer[] validity = new ByteBuffer[columns];
+        for (int col = 0; col < columns; col++) {
+            values[col] = ByteBuffer.allocateDirect(8 * BLOCK_ROWS).order(ByteOrder.LITTLE_ENDIAN);
+            validity[col] = ByteBuffer.allocateDirect(BLOCK_ROWS / 8);
+        }
+        for (int first = 0; first < rows; first += BLOCK_ROWS) {
+            int count = Math.min(BLOCK_ROWS, rows - first);
+            for (int col = 0; col < columns; col++) {
+                values[col].clear();
+                validity[col].clear();
+                for (int i = 0; i < validity[col].capacity(); i++) {
+                    validity[col].put(i, (byte) 0);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                int row = first + i;
+                ByteBuffer segment = table.segment(row);
+                int offset = table.rowOffset(row);
+                for (int col = 0; col < columns; col++) {
+                    // Writer may have terminated between storing committed bitmask and status
+                    long status = segment.getLong(offset + 8 * (col >>> 6)) | table.stateWord(segment, offset, col);
+                    if ((status >>> col & 1L) == 0L) {
+                        values[col].putLong(0L);
+                        nullCounts[col]++;
+                    } else {
+                        values[col].putLong(table.getLong(row, col));
+                        validity[col].put(i >>> 3, (byte) (validity[col].get(i >>> 3) | 1 << (i & 7)));
+                    }
+                }
+            }
+            for (int col = 0; col < columns; col++) {
+                long columnOffset = body + col * (validitySize + valuesSize);
+                validity[col].limit((count + 7) / 8);
+                writeFully(channel, validity[col], columnOffset + first / 8);
+                writeFully(channel, values[col].flip(), columnOffset + validitySize + 8L * first);
+            }
+        }
+    }
+
+    private int schema(FlatBuilder builder) {
+        int columns = names.length;
+        int[] fields = new int[columns];
+        for (int col = columns - 1; col >= 0; col--) {
+            boolean isDouble = table.storesDouble(col);
+            builder.startTable(2);
+            if (isDouble) {
+                builder.addShort(0, PRECISION_DOUBLE);
+            } else {
+                builder.addInt(0, 64);
+                builder.addByte(1, (byte) 1);
+            }
+            int type = builder.endTable();
+            builder.startVector(4, 0, 4);
+            int children = builder.endVector();
+            int name = builder.createString(names[col]);
+            builder.startTable(7);
+            builder.addOffset(5, children);
+            builder.addOffset(3, type);
+            builder.addOffset(0, name);
+            builder.addByte(2, isDouble ? TYPE_FLOATING_POINT : TYPE_INT);
+            builder.addByte(1, (byte) 1);
+            fields[col] = builder.endTable();
+        }
+        int vector = builder.createOffsets(fields);
+        builder.startTable(4);
+        builder.addOffset(1, vector);
+        builder.addShort(0, (short) 0);
+        return builder.endTable();
+    }
+
+    private ByteBuffer recordBatch(int rows, long validitySize, long valuesSize, long[] nullCounts, long bodySize) {
+        int columns = names.length;
+        FlatBuilder builder = new FlatBuilder();
+        builder.startVector(16, 2 * columns, 8);
+        for (int col = columns - 1; col >= 0; col--) {
+            long columnOffset = col * (validitySize + valuesSize);
+            builder.prep(8, 16);
+            builder.putLong(8L * rows);
+            builder.putLong(columnOffset + validitySize);
+            builder.prep(8, 16);
+            builder.putLong((rows + 7) / 8);
+            builder.putLong(columnOffset);
+        }
+        int buffers = builder.endVector();
+        builder.startVector(16, columns, 8);
+        for (int col = columns - 1; col >= 0; col--) {
+            builder.prep(8, 16);
+            builder.putLong(nullCounts[col]);
+            builder.putLong(rows);
+        }
+        int nodes = builder.endVector();
+        builder.startTable(3);
+        builder.addLong(0, rows);
+        builder.addOffset(2, buffers);
+        builder.addOffset(1, nodes);
+        return message(HEADER_RECORD_BATCH, builder, builder.endTable(), bodySize);
+    }
+
+    private static ByteBuffer message(byte headerType, FlatBuilder builder, int header, long bodySize) {
+        builder.startTable(4);
+        builder.addLong(3, bodySize);
+        builder.addOffset(2, header);
+        builder.addShort(0, METADATA_V5);
+        builder.addByte(1, headerType);
+        ByteBuffer metadata = builder.finish(builder.endTable());
+        int length = (int) align8(metadata.remaining());
+        ByteBuffer message = ByteBuffer.allocate(8 + length).order(ByteOrder.LITTLE_ENDIAN);
+        message.putInt(-1).putInt(length).put(metadata);
+        return message.position(0);
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    private static long align(long size) {
+        return (size + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private static long align8(long size) {
+        return (size + 7) & -8L;
+    }
+
+    /**
+     * Minimal FlatBuffers builder writing back to front, as the reference implementation does.
+     */
+    static final class FlatBuilder {
+        private ByteBuffer bb = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+        private int space = bb.capacity();
+        private int minAlign = 1;
+        private int[] vtable;
+        private int objectStart;
+        private int vectorElements;
+
+        int offset() {
+            return bb.capacity() - space;
+        }
+
+        void pad(int bytes) {
+            for (int i = 0; i < bytes; i++) {
+                bb.put(--space, (byte) 0);
+            }
+        }
+
+        // Aligns the buffer so that 'size' value is aligned after writing 'additional' bytes.
+        void prep(int size, int additional) {
+            minAlign = Math.max(minAlign, size);
+            int alignSize = (-(offset() + additional)) & (size - 1);
+            while (space < alignSize + size + additional) {
+                int used = offset();
+                ByteBuffer grown = ByteBuffer.allocate(2 * bb.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+                grown.position(grown.capacity() - used);
+                grown.put(bb.position(space));
+                bb = grown;
+                space = bb.capacity() - used;
+            }
+            pad(alignSize);
+        }
+
+        void putLong(long x) {
+            bb.putLong(space -= 8, x);
+        }
+
+        void putInt(int x) {
+            bb.putInt(space -= 4, x);
+        }
+
+        void addLong(int field, long x) {
+            prep(8, 0);
+            putLong(x);
+            vtable[field] = offset();
+        }
+
+        void addInt(int field, int x) {
+            prep(4, 0);
+            putInt(x);
+            vtable[field] = offset();
+        }
+
+        void addShort(int field, short x) {
+            prep(2, 0);
+            bb.putShort(space -= 2, x);
+            vtable[field] = offset();
+        }
+
+        void addByte(int field, byte x) {
+            prep(1, 0);
+            bb.put(--space, x);
+            vtable[field] = offset();
+        }
+
+        void addOffset(int field, int target) {
+            prep(4, 0);
+            putInt(offset() + 4 - target);
+            vtable[field] = offset();
+        }
+
+        int createString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            prep(4, bytes.length + 1);
+            bb.put(--space, (byte) 0);
+            space -= bytes.length;
+            bb.put(space, bytes);
+            putInt(bytes.length);
+            return offset();
+        }
+
+        int createOffsets(int[] targets) {
+            startVector(4, targets.length, 4);
+            for (int i = targets.length - 1; i >= 0; i--) {
+                prep(4, 0);
+                putInt(offset() + 4 - targets[i]);
+            }
+            return endVector();
+        }
+
+        void startVector(int elementSize, int elements, int alignment) {
+            prep(4, elementSize * elements);
+            prep(alignment, elementSize * elements);
+            vectorElements = elements;
+        }
+
+        int endVector() {
+            putInt(vectorElements);
+            return offset();
+        }
+
+        void startTable(int fields) {
+            vtable = new int[fields];
+            objectStart = offset();
+        }
+
+        int endTable() {
+            prep(4, 0);
+            putInt(0);
+            int object = offset();
+            for (int i = vtable.length - 1; i >= 0; i--) {
+                bb.putShort(space -= 2, (short) (vtable[i] != 0 ? object - vtable[i] : 0));
+            }
+            bb.putShort(space -= 2, (short) (object - objectStart));
+            bb.putShort(space -= 2, (short) (2 * vtable.length + 4));
+            // Table starts with signed offset back to its vtable
+            bb.putInt(bb.capacity() - object, offset() - object);
+            return object;
+        }
+
+        ByteBuffer finish(int root) {
+            prep(minAlign, 4);
+            putInt(offset() + 4 - root);
+            return bb.duplicate().position(space).slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+}
@@ -31,6 +31,7 @@ class AcmColumn {
     final Type type;
     final int storeColumn;
     int referenceColumn = -1;
+    Function function = Function.CUSTOM;
     AcmDoubleAction doubleAction;
     AcmLongAction longAction;
     AcmDoubleToLongAction doubleToLongAction;
@@ -38,6 +39,9 @@ class AcmColumn {
 
     public enum Type {DOUBLE, LONG, DOUBLE_TO_LONG, LONG_TO_DOUBLE}
 
+    // Built-in functions executed inline by compiled handler.
+    public enum Function {CUSTOM, SUM, COUNT, MIN, MAX, FIRST, LAST, INCREMENT}
+
     public AcmColumn(AcmDoubleAction action, int storeColumn) {
         this.doubleAction = action;
         this.storeColumn = storeColumn;
@@ -61,4 +65,17 @@ class AcmColumn {
         this.storeColumn = storeColumn;
         type = Type.LONG_TO_DOUBLE;
     }
+
+    Object action() {
+        switch (type) {
+            case DOUBLE:
+                return doubleAction;
+            case LONG:
+                return longAction;
+            case DOUBLE_TO_LONG:
+                return doubleToLongAction;
+            default:
+                return longToDoubleAction;
+        }
+    }
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2020 threadcat
+ *
+ *     https://github.com/threadcat/accumulating-record
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threadcat.acm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Durability policy for memory mapped {@link AcmRecord} or {@link AcmTable}.
+ * Writer thread only marks dirty pages on commit, background flusher forces dirty page ranges to disk
+ * every N commits or every T microseconds, {@link #barrier()} forces them in the calling thread.
+ * Page is marked after its data written and unmarked before being forced, so no update is missed.
+ *
+ * @author threadcat
+ */
+public class AcmDurability implements AutoCloseable {
+    private static final int PAGE_SHIFT = 12;
+    private static final VarHandle DIRTY = MethodHandles.arrayElementVarHandle(byte[].class);
+    // Negative for 'none' policy.
+    private final int commits;
+    private final long intervalNanos;
+    private MappedByteBuffer[] buffers;
+    // Dirty flag per page and per buffer, set by writer with release and cleared by flusher, see 'DIRTY'.
+    private byte[][] dirtyPages;
+    private byte[] dirtyBuffers;
+    // Approximate if rows are committed by several writers.
+    private long commitCount;
+    private Thread flusher;
+    private volatile boolean closed;
+    private volatile long flushes;
+
+    private AcmDurability(int commits, long intervalNanos) {
+        this.commits = commits;
+        this.intervalNanos = intervalNanos;
+    }
+
+    /**
+     * Durability is left to operating system.
+     */
+    public static AcmDurability none() {
+        return new AcmDurability(-1, 0L);
+    }
+
+    /**
+     * Background flush after every N commits.
+     */
+    public static AcmDurability everyCommits(int commits) {
+        if (commits <= 0) {
+            throw new AcmException("Incorrect number of commits " + commits);
+        }
+        return new AcmDurability(commits, 0L);
+    }
+
+    /**
+     * Background flush every T microseconds if anything is committed.
+     */
+    public static AcmDurability everyMicros(long micros) {
+        if (micros <= 0) {
+            throw new AcmException("Incorrect flush interval " + micros);
+        }
+        return new AcmDurability(0, TimeUnit.MICROSECONDS.toNanos(micros));
+    }
+
+    /**
+     * Dirty pages are forced by {@link #barrier()} only.
+     */
+    public static AcmDurability onDemand() {
+        return new AcmDurability(0, 0L);
+    }
+
+    /**
+     * Forces pages changed since previous flush, blocks calling thread.
+     */
+    public void barrier() {
+        if (buffers != null) {
+            flush();
+        }
+    }
+
+    /**
+     * Stops background flusher after final flush.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        barrier();
+    }
+
+    void attach(ByteBuffer[] buffers) {
+        if (this.dirtyBuffers != null) {
+            throw new AcmException("Durability policy is already attached");
+        }
+        MappedByteBuffer[] mapped = new MappedByteBuffer[buffers.length];
+        byte[][] dirtyPages = new byte[buffers.length][];
+        for (int i = 0; i < buffers.length; i++) {
+            if (!(buffers[i] instanceof MappedByteBuffer) || buffers[i].isReadOnly()) {
+                throw new AcmException("Durability policy requires writable memory mapped buffer");
+            }
+            mapped[i] = (MappedByteBuffer) buffers[i];
+            dirtyPages[i] = new byte[(buffers[i].capacity() >>> PAGE_SHIFT) + 1];
+        }
+        if (commits < 0) {
+            return;
+        }
+        this.dirtyPages = dirtyPages;
+        this.dirtyBuffers = new byte[buffers.length];
+        this.buffers = mapped;
+        if (commits > 0 || intervalNanos > 0) {
+            flusher = new Thread(this::run, "acm-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    // Called by writer thread after buffer range is written.
+    void written(ByteBuffer buffer, int offset, int length) {
+        if (buffers == null) {
+            return;
+        }
+        int index = indexOf(buffer);
+        byte[] pages = dirtyPages[index];
+        for (int page = offset >>> PAGE_SHIFT; page <= (offset + length - 1) >>> PAGE_SHIFT; page++) {
+            DIRTY.setRelease(pages, page, (byte) 1);
+        }
+        DIRTY.setRelease(dirtyBuffers, index, (byte) 1);
+    }
+
+    // Called by writer thread on commit.
+    void committed(ByteBuffer buffer, int offset, int length) {
+        written(buffer, offset, length);
+        if (commits > 0 && ++commitCount % commits == 0) {
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    // Number of flushes which found dirty pages.
+    long flushes() {
+        return flushes;
+    }
+
+    private int indexOf(ByteBuffer buffer) {
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i] == buffer) {
+                return i;
+            }
+        }
+        throw new AcmException("Buffer is not attached to durability policy");
+    }
+
+    private void run() {
+        while (!closed) {
+            if (intervalNanos > 0) {
+                LockSupport.parkNanos(intervalNanos);
+            } else {
+                LockSupport.park();
+            }
+            flush();
+        }
+    }
+
+    private synchronized void flush() {
+        boolean flushed = false;
+        for (int i = 0; i < buffers.length; i++) {
+            if ((byte) DIRTY.getAcquire(dirtyBuffers, i) == 0) {
+                continue;
+            }
+            flushed = true;
+            DIRTY.setOpaque(dirtyBuffers, i, (byte) 0);
+            VarHandle.fullFence();
+            byte[] pages = dirtyPages[i];
+            for (int page = 0; page < pages.length; page++) {
+                if ((byte) DIRTY.getAcquire(pages, page) == 0) {
+                    continue;
+                }
+                int first = page;
+                while (page < pages.length && (byte) DIRTY.getAcquire(pages, page) != 0) {
+                    DIRTY.setOpaque(pages, page++, (byte) 0);
+                }
+                VarHandle.fullFence();
+                int start = first << PAGE_SHIFT;
+                int end = (int) Math.min((long) page << PAGE_SHIFT, buffers[i].capacity());
+                buffers[i].force(start, end - start);
+            }
+        }
+        if (flushed) {
+            flushes++;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2020 threadcat
+ *
+ *     https://github.com/threadcat/accumulating-record
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threadcat.acm;
+
+/**
+ * Ready-made column groups for market data: VWAP, TWAP, EWMA, Welford mean and variance, OHLC with range.
+ * Columns of a group are added next to each other, so functions find sibling columns at fixed distance
+ * from the store column. Functions are static and capture nothing, values are never boxed.
+ * Sibling values are read with {@link AcmView#getCurrentDouble(int)}, i.e. as updated in current transaction.
+ * <pre>
+ *     AcmFinance.Vwap vwap = new AcmFinance.Vwap(record, priceColumn, quantityColumn);
+ *     record.update(priceColumn, 1.2345);
+ *     record.update(quantityColumn, 1e6);
+ *     record.commit();
+ *     record.getDouble(vwap.vwap);
+ * </pre>
+ *
+ * @author threadcat
+ */
+public abstract class AcmFinance {
+    private static final AcmDoubleAction NOTIONAL = AcmFinance::notional;
+    private static final AcmDoubleAction VWAP = AcmFinance::vwap;
+    private static final AcmLongToDoubleAction AREA = AcmFinance::area;
+    private static final AcmDoubleAction TWAP = AcmFinance::twap;
+    private static final AcmDoubleAction MEAN = AcmFinance::mean;
+    private static final AcmDoubleAction M2 = AcmFinance::m2;
+    private static final AcmDoubleAction VARIANCE = AcmFinance::variance;
+    private static final AcmDoubleAction RANGE = AcmFinance::range;
+
+    static {
+        AcmSchema.registerDouble("VWAP_NOTIONAL", NOTIONAL);
+        AcmSchema.registerDouble("VWAP", VWAP);
+        AcmSchema.registerLongToDouble("TWAP_AREA", AREA);
+        AcmSchema.registerDouble("TWAP", TWAP);
+        AcmSchema.registerDouble("WELFORD_MEAN", MEAN);
+        AcmSchema.registerDouble("WELFORD_M2", M2);
+        AcmSchema.registerDouble("VARIANCE", VARIANCE);
+        AcmSchema.registerDouble("RANGE", RANGE);
+    }
+
+    /**
+     * Volume weighted average price. Price has to be updated before quantity of the same trade.
+     */
+    public static final class Vwap {
+        public final int price;
+        public final int notional;
+        public final int volume;
+        public final int vwap;
+
+        public Vwap(AcmHandler handler, int priceColumn, int quantityColumn) {
+            price = handler.addColumn(AcmDouble.LAST, priceColumn);
+            notional = handler.addColumn(NOTIONAL, quantityColumn);
+            volume = handler.addColumn(AcmDouble.SUM, quantityColumn);
+            vwap = handler.addColumn(VWAP, volume);
+        }
+    }
+
+    /**
+     * Time weighted average price, each price holds until the next timestamp.
+     * Timestamp column has to be updated with every price, average is recalculated on timestamp update.
+     */
+    public static final class Twap {
+        public final int firstTime;
+        public final int lastTime;
+        public final int price;
+        public final int area;
+        public final int twap;
+
+        public Twap(AcmHandler handler, int priceColumn, int timeColumn) {
+            firstTime = handler.addColumn(AcmLong.FIRST, timeColumn);
+            lastTime = handler.addColumn(AcmLong.LAST, timeColumn);
+            price = handler.addColumn(AcmDouble.LAST, priceColumn);
+            area = handler.addColumn(AREA, timeColumn);
+            twap = handler.addColumn(TWAP, area);
+        }
+    }
+
+    /**
+     * Exponentially weighted moving average, weight of an update halves after 'halfLife' updates.
+     */
+    public static final class Ewma {
+        public final int ewma;
+
+        public Ewma(AcmHandler handler, int valueColumn, double halfLife) {
+            if (!(halfLife > 0.0)) {
+                throw new AcmException("Half-life has to be positive " + halfLife);
+            }
+            ewma = handler.addColumn(new Smoothing(1.0 - Math.pow(0.5, 1.0 / halfLife)), valueColumn);
+        }
+    }
+
+    /**
+     * Running mean and sample variance by Welford's algorithm, numerically stable for long series.
+     */
+    public static final class Variance {
+        public final int count;
+        public final int mean;
+        public final int m2;
+        public final int variance;
+
+        public Variance(AcmHandler handler, int valueColumn) {
+            count = handler.addColumn(AcmDouble.COUNT, valueColumn);
+            mean = handler.addColumn(MEAN, valueColumn);
+            m2 = handler.addColumn(M2, valueColumn);
+            variance = handler.addColumn(VARIANCE, m2);
+        }
+    }
+
+    /**
+     * Open, high, low, close and high-low range.
+     */
+    public static final class Ohlc {
+        public final int open;
+        public final int high;
+        public final int low;
+        public final int close;
+        public final int range;
+
+        public Ohlc(AcmHandler handler, int priceColumn) {
+            open = handler.addColumn(AcmDouble.FIRST, priceColumn);
+            high = handler.addColumn(AcmDouble.MAX, priceColumn);
+            low = handler.addColumn(AcmDouble.MIN, priceColumn);
+            close = handler.addColumn(AcmDouble.LAST, priceColumn);
+            range = handler.addColumn(RANGE, priceColumn);
+        }
+    }
+
+    // [price][notional]
+    private static double notional(AcmView view, int storeColumn, int referenceColumn, double quantity) {
+        return view.getDouble(storeColumn) + view.getCurrentDouble(storeColumn - 1) * quantity;
+    }
+
+    // [price][notional][volume][vwap]
+    private static double vwap(AcmView view, int storeColumn, int referenceColumn, double volume) {
+        return volume == 0.0 ? view.getCurrentDouble(storeColumn - 3) : view.getCurrentDouble(storeColumn - 2) / volume;
+    }
+
+    // [last time][price][area], committed price holds from committed time to the new one
+    private static double area(AcmView view, int storeColumn, int referenceColumn, long time) {
+        if (view.isEmpty(storeColumn - 2) || view.isEmpty(storeColumn - 1)) {
+            return view.getDouble(storeColumn);
+        }
+        return view.getDouble(storeColumn) + view.getDouble(storeColumn - 1) * (time - view.getLong(storeColumn - 2));
+    }
+
+    // [first time][last time][price][area][twap]
+    private static double twap(AcmView view, int storeColumn, int referenceColumn, double area) {
+        long duration = view.getCurrentLong(storeColumn - 3) - view.getCurrentLong(storeColumn - 4);
+        return duration > 0 ? area / duration : view.getCurrentDouble(storeColumn - 2);
+    }
+
+    // [count][mean]
+    private static double mean(AcmView view, int storeColumn, int referenceColumn, double value) {
+        double mean = view.getDouble(storeColumn);
+        return mean + (value - mean) / view.getCurrentLong(storeColumn - 1);
+    }
+
+    // [mean][m2]
+    private static double m2(AcmView view, int storeColumn, int referenceColumn, double value) {
+        double oldMean = view.getDouble(storeColumn - 1);
+        double newMean = view.getCurrentDouble(storeColumn - 1);
+        return view.getDouble(storeColumn) + (value - oldMean) * (value - newMean);
+    }
+
+    // [count][mean][m2][variance]
+    private static double variance(AcmView view, int storeColumn, int referenceColumn, double m2) {
+        long count = view.getCurrentLong(storeColumn - 3);
+        return count > 1 ? m2 / (count - 1) : 0.0;
+    }
+
+    // [high][low][close][range]
+    private static double range(AcmView view, int storeColumn, int referenceColumn, double value) {
+        return view.getCurrentDouble(storeColumn - 3) - view.getCurrentDouble(storeColumn - 2);
+    }
+
+    private static final class Smoothing implements AcmDoubleAction {
+        private final double alpha;
+
+        Smoothing(double alpha) {
+            this.alpha = alpha;
+        }
+
+        @Override
+        public double apply(AcmView view, int storeColumn, int referenceColumn, double value) {
+            if (view.isEmpty(storeColumn)) {
+                return value;
+            }
+            double ewma = view.getDouble(storeColumn);
+            return ewma + alpha * (value - ewma);
+        }
+    }
+}
@@ -17,9 +17,15 @@
  */
 package com.threadcat.acm;
 
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Transactional store for custom cumulative functions.
@@ -29,69 +35,120 @@ import java.util.List;
  * @author threadcat
  */
 class AcmHandler implements AcmView {
+    private static final AcmLongAction INCREMENT = (view, storeColumn, referenceColumn, value) -> value + 1L;
+    private static final Map<Object, AcmColumn.Function> BUILT_IN = new IdentityHashMap<>();
+
+    static {
+        BUILT_IN.put(AcmDouble.SUM, AcmColumn.Function.SUM);
+        BUILT_IN.put(AcmDouble.COUNT, AcmColumn.Function.COUNT);
+        BUILT_IN.put(AcmDouble.MIN, AcmColumn.Function.MIN);
+        BUILT_IN.put(AcmDouble.MAX, AcmColumn.Function.MAX);
+        BUILT_IN.put(AcmDouble.FIRST, AcmColumn.Function.FIRST);
+        BUILT_IN.put(AcmDouble.LAST, AcmColumn.Function.LAST);
+        BUILT_IN.put(AcmLong.SUM, AcmColumn.Function.SUM);
+        BUILT_IN.put(AcmLong.COUNT, AcmColumn.Function.COUNT);
+        BUILT_IN.put(AcmLong.MIN, AcmColumn.Function.MIN);
+        BUILT_IN.put(AcmLong.MAX, AcmColumn.Function.MAX);
+        BUILT_IN.put(AcmLong.FIRST, AcmColumn.Function.FIRST);
+        BUILT_IN.put(AcmLong.LAST, AcmColumn.Function.LAST);
+        BUILT_IN.put(INCREMENT, AcmColumn.Function.INCREMENT);
+    }
+
+    private int headerOffset;
     private int statusOffset;
     private int draftOffset;
     private int dataOffset;
-    private final List<AcmColumn> columnList = new ArrayList<>();
+    // Header words of current row, cached in write-combining mode where they are only published by 'commit' and 'reset'.
+    private boolean writeCombining;
+    private long[] savedState;
+    private long[] status;
+    private long selector;
+    private int halfSize;
+    private int words;
+    private final List<AcmColumn> columnList;
     private int revisionColumn = -1;
-    private long provisioned;
+    private long[] provisioned;
+    // Frozen schema: columns and flat propagation plan per source column.
+    private AcmColumn[] columns;
+    private int[][] plans;
+    // Compiled plans, see 'compile'.
+    private int[][][] kernels;
+    private long[] longResults;
+    private double[] doubleResults;
     protected ByteBuffer buffer;
+    AcmDurability durability;
+    AcmJournal journal;
+    boolean schemaBlock;
 
     /**
-     * Constructor defines offsets in ByteBuffer for 'empty' and 'committed' info and column data area.
+     * Constructor defines offset in ByteBuffer of the record header. Header consists of 'empty' and 'committed'
+     * info followed by column data area. Up to 64 columns header is two words:
+     * <pre>
+     * [status][draft][data]
+     * </pre>
+     * More columns need multi-word bitmasks. Draft word then counts commits and its lowest bit selects one of two
+     * copies of the committed bitmask, so that commit of all words is still a single store:
+     * <pre>
+     * [status x words][selector][draft x words][draft x words][data]
+     * </pre>
      *
-     * @param statusOffset - columns which were updated since last 'reset'.
-     * @param draftOffset  - draft vs committed data offsets.
-     * @param dataOffset   - start of column data area.
+     * @param headerOffset - start of the record header.
      */
-    public AcmHandler(int statusOffset, int draftOffset, int dataOffset) {
-        this.statusOffset = statusOffset;
-        this.draftOffset = draftOffset;
-        this.dataOffset = dataOffset;
-    }
-
-    protected void setStatusOffset(int statusOffset) {
-        this.statusOffset = statusOffset;
+    public AcmHandler(int headerOffset) {
+        this.headerOffset = headerOffset;
+        this.columnList = new ArrayList<>();
     }
 
-    protected void setDraftOffset(int draftOffset) {
-        this.draftOffset = draftOffset;
+    /**
+     * Constructor sharing frozen schema of another handler, each handler has its own row state.
+     */
+    AcmHandler(AcmHandler schema, int headerOffset) {
+        if (schema.plans == null) {
+            throw new AcmException("Byte buffer has to be set first");
+        }
+        this.headerOffset = headerOffset;
+        this.columnList = schema.columnList;
+        this.revisionColumn = schema.revisionColumn;
+        this.columns = schema.columns;
+        this.plans = schema.plans;
+        this.kernels = schema.kernels;
+        this.durability = schema.durability;
+        this.journal = schema.journal;
+        this.writeCombining = schema.writeCombining;
+        allocate();
     }
 
-    protected void setDataOffset(int dataOffset) {
-        this.dataOffset = dataOffset;
+    protected void setHeaderOffset(int headerOffset) {
+        this.headerOffset = headerOffset;
+        statusOffset = headerOffset;
+        draftOffset = headerOffset + 8 * words;
+        dataOffset = headerOffset + headerSize(words);
     }
 
     public int addColumn(AcmDoubleAction action) {
         AcmColumn col = new AcmColumn(action, columnList.size());
-        columnList.add(col);
-        return col.storeColumn;
+        return register(col);
     }
 
     public int addColumn(AcmLongAction action) {
         AcmColumn col = new AcmColumn(action, columnList.size());
-        columnList.add(col);
-        return col.storeColumn;
+        return register(col);
     }
 
     public int addColumn(AcmDoubleToLongAction action) {
         AcmColumn col = new AcmColumn(action, columnList.size());
-        columnList.add(col);
-        return col.storeColumn;
+        return register(col);
     }
 
     public int addColumn(AcmLongToDoubleAction action) {
         AcmColumn col = new AcmColumn(action, columnList.size());
-        columnList.add(col);
-        return col.storeColumn;
+        return register(col);
     }
 
     public int addRevisionColumn() {
         if (revisionColumn == -1) {
-            AcmLongAction increment = (view, storeColumn, referenceColumn, value) -> value + 1L;
-            AcmColumn col = new AcmColumn(increment, columnList.size());
-            columnList.add(col);
-            revisionColumn = col.storeColumn;
+            AcmColumn col = new AcmColumn(INCREMENT, columnList.size());
+            revisionColumn = register(col);
         }
         return revisionColumn;
     }
@@ -116,63 +173,375 @@ class AcmHandler implements AcmView {
         return linkColumn(col, reference);
     }
 
+    /**
+     * @return size of the record header and data.
+     */
     protected int size() {
-        return columnList.size() * 16;
+        return rowSize(columnList.size());
+    }
+
+    /**
+     * Creates reader of committed values of selected columns, safe to use from another thread.
+     * Requires revision column to detect concurrent commits.
+     */
+    public AcmReader reader(int... cols) {
+        if (plans == null) {
+            throw new AcmException("Byte buffer has to be set first");
+        }
+        if (revisionColumn == -1) {
+            throw new AcmException("Reader requires revision column");
+        }
+        return new AcmReader(this, cols);
+    }
+
+    int getRevisionColumn() {
+        return revisionColumn;
+    }
+
+    int words() {
+        return words;
+    }
+
+    // Row geometry for readers, record has single row.
+    ByteBuffer segment(int row) {
+        return buffer;
+    }
+
+    int rowOffset(int row) {
+        return headerOffset;
+    }
+
+    protected int columnCount() {
+        return columnList.size();
+    }
+
+    // Stored value type, result of long to double function is double.
+    boolean storesDouble(int col) {
+        AcmColumn.Type type = columnList.get(col).type;
+        return type == AcmColumn.Type.DOUBLE || type == AcmColumn.Type.LONG_TO_DOUBLE;
+    }
+
+    /**
+     * @return layout version, 2 for multi-word header.
+     */
+    protected int version() {
+        return (words(columnList.size()) == 1 ? 1 : 2) | (schemaBlock ? AcmSchema.FLAG : 0);
+    }
+
+    /**
+     * Stores schema block at the end of the buffer, reopening then validates column types, functions and references.
+     * Has to be set before byte buffer.
+     */
+    public void setSchemaBlock(boolean schemaBlock) {
+        if (buffer != null) {
+            throw new AcmException("Schema block has to be set before byte buffer");
+        }
+        this.schemaBlock = schemaBlock;
+    }
+
+    AcmColumn column(int col) {
+        return columnList.get(col);
+    }
+
+    protected int headerSize() {
+        return headerSize(words);
+    }
+
+    static int words(int columns) {
+        return Math.max(1, (columns + 63) >>> 6);
+    }
+
+    static int headerSize(int words) {
+        return words == 1 ? 16 : 24 * words + 8;
+    }
+
+    static int rowSize(int columns) {
+        return headerSize(words(columns)) + columns * 16;
+    }
+
+    /**
+     * @return number of columns for given record size or -1.
+     */
+    static int columns(int rowSize) {
+        int columns = Math.max(0, (rowSize - headerSize(1)) / 16);
+        while (columns > 0 && rowSize(columns) > rowSize) {
+            columns--;
+        }
+        return rowSize(columns) == rowSize ? columns : -1;
     }
 
     public void setByteBuffer(ByteBuffer buffer) {
+        if (plans == null) {
+            freeze();
+        }
         this.buffer = buffer;
-        // Completing eventual consistency cycle for 'status' (emptiness flags).
-        // This is needed if process terminated at the moment between storing 'committed' and 'status'.
-        long status = buffer.getLong(statusOffset) | buffer.getLong(draftOffset);
-        buffer.putLong(statusOffset, status);
+        loadState();
+        recover();
+    }
+
+    // Completing eventual consistency cycle for 'status' (emptiness flags).
+    // This is needed if process terminated at the moment between storing 'committed' and 'status'.
+    // Read-only buffer is fixed in cached words only.
+    protected void recover() {
+        boolean writable = !buffer.isReadOnly();
+        for (int i = 0; i < words; i++) {
+            status[i] |= savedState[i];
+            if (writable) {
+                buffer.putLong(statusOffset + 8 * i, status[i]);
+            }
+        }
+    }
+
+    /**
+     * Sets durability policy, memory mapped byte buffer has to be set first.
+     * Handlers sharing schema get the policy when created after it is set.
+     */
+    public void setDurability(AcmDurability durability) {
+        if (buffer == null) {
+            throw new AcmException("Byte buffer has to be set first");
+        }
+        durability.attach(buffers());
+        this.durability = durability;
+    }
+
+    /**
+     * Write-combining mode keeps header words of the current row in the handler instead of reading them
+     * from the buffer on every cell access. Commits of other handles sharing the row are not seen
+     * until {@link #refresh()}, so it suits a handler being the only writer of its row.
+     */
+    public void setWriteCombining(boolean writeCombining) {
+        this.writeCombining = writeCombining;
+        if (buffer != null) {
+            loadState();
+        }
+    }
+
+    /**
+     * Appends every commit and reset to the journal, see {@link AcmJournal}.
+     * Handlers sharing schema get the journal when created after it is set.
+     */
+    public void setJournal(AcmJournal journal) {
+        journal.check(this);
+        this.journal = journal;
+    }
+
+    // Row of the current header, record has single row.
+    int row() {
+        return 0;
+    }
+
+    // Table handler writes its cursor row.
+    boolean isCursor() {
+        return false;
+    }
+
+    // Buffers written by this handler.
+    ByteBuffer[] buffers() {
+        return new ByteBuffer[]{buffer};
+    }
+
+    /**
+     * Reloads state committed by another writer in write-combining mode or when buffer is attached read-only.
+     */
+    public void refresh() {
+        loadState();
+        recover();
+    }
+
+    /**
+     * Reloads header words after switching to another row.
+     */
+    protected void loadState() {
+        int stateOffset = draftOffset;
+        if (words > 1) {
+            selector = buffer.getLong(draftOffset);
+            stateOffset += 8 + 8 * words * (int) (selector & 1L);
+        }
+        for (int i = 0; i < words; i++) {
+            savedState[i] = buffer.getLong(stateOffset + 8 * i);
+            status[i] = buffer.getLong(statusOffset + 8 * i);
+        }
+    }
+
+    /**
+     * Reads committed/draft bitmask from the header at given offset.
+     *
+     * @return draft word the bitmask was read under, it changes with every commit.
+     */
+    long readState(ByteBuffer buffer, int headerOffset, long[] state) {
+        int draftOffset = headerOffset + 8 * words;
+        if (words == 1) {
+            state[0] = buffer.getLong(draftOffset);
+            return state[0];
+        }
+        // Selector counts commits, copy being read is rewritten only after selector moves on
+        long selector = buffer.getLong(draftOffset);
+        while (true) {
+            VarHandle.acquireFence();
+            int stateOffset = draftOffset + 8 + 8 * words * (int) (selector & 1L);
+            for (int i = 0; i < words; i++) {
+                state[i] = buffer.getLong(stateOffset + 8 * i);
+            }
+            VarHandle.loadLoadFence();
+            long check = buffer.getLong(draftOffset);
+            if (check == selector) {
+                return selector;
+            }
+            selector = check;
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * @return committed/draft bits of the word holding specified column, read from the header at given offset.
+     */
+    protected long stateWord(ByteBuffer buffer, int headerOffset, int col) {
+        int draftOffset = headerOffset + 8 * words;
+        if (words == 1) {
+            return buffer.getLong(draftOffset);
+        }
+        int copy = (int) (buffer.getLong(draftOffset) & 1L);
+        return buffer.getLong(draftOffset + 8 + 8 * (words * copy + (col >>> 6)));
     }
 
     /**
      * Updates specified column draft value and triggers functions on linked columns.
      */
     public void update(int col, long value) {
-        AcmColumn column = columnList.get(col);
+        AcmColumn column = columns[col];
         switch (column.type) {
             case LONG:
-                long newLong = column.longAction.apply(this, col, column.referenceColumn, value);
+                long newLong = applyLong(column, col, value);
                 provision(col, newLong);
-                processLinks(column.linkedColumns, newLong);
+                longResults[col] = newLong;
                 break;
             case LONG_TO_DOUBLE:
-                double newDouble = column.longToDoubleAction.apply(this, col, column.referenceColumn, value);
+                double newDouble = applyLongToDouble(column, col, value);
                 provision(col, newDouble);
-                processLinks(column.linkedColumns, newDouble);
+                doubleResults[col] = newDouble;
                 break;
             default:
                 throw new AcmException("Can not process 'long', column type is " + column.type);
         }
+        propagate(col);
     }
 
     /**
      * Updates specified column draft value and triggers functions on linked columns.
      */
     public void update(int col, double value) {
-        AcmColumn column = columnList.get(col);
+        AcmColumn column = columns[col];
         switch (column.type) {
             case DOUBLE:
-                double newDouble = column.doubleAction.apply(this, col, column.referenceColumn, value);
+                double newDouble = applyDouble(column, col, value);
                 provision(col, newDouble);
-                processLinks(column.linkedColumns, newDouble);
+                doubleResults[col] = newDouble;
                 break;
             case DOUBLE_TO_LONG:
-                long newLong = column.doubleToLongAction.apply(this, col, column.referenceColumn, value);
+                long newLong = applyDoubleToLong(column, col, value);
                 provision(col, newLong);
-                processLinks(column.linkedColumns, newLong);
+                longResults[col] = newLong;
                 break;
             default:
                 throw new AcmException("Can not process 'double', column type is " + column.type);
         }
+        propagate(col);
+    }
+
+    /**
+     * Applies a batch of update/commit cycles, one per tick.
+     * Values are laid out tick by tick, one value per column in 'cols' order.
+     */
+    public void updateBatch(int[] cols, double[] values, int offset, int ticks) {
+        int width = cols.length;
+        checkBatch(values.length, offset, ticks, width);
+        for (int i = offset, end = offset + ticks * width; i < end; i += width) {
+            for (int j = 0; j < width; j++) {
+                update(cols[j], values[i + j]);
+            }
+            commit();
+        }
+    }
+
+    /**
+     * Applies a batch of update/commit cycles, one per tick.
+     * Values are laid out tick by tick, one value per column in 'cols' order.
+     */
+    public void updateBatch(int[] cols, long[] values, int offset, int ticks) {
+        int width = cols.length;
+        checkBatch(values.length, offset, ticks, width);
+        for (int i = offset, end = offset + ticks * width; i < end; i += width) {
+            for (int j = 0; j < width; j++) {
+                update(cols[j], values[i + j]);
+            }
+            commit();
+        }
+    }
+
+    /**
+     * Applies update/commit cycles for all ticks remaining in the buffer and advances its position.
+     * Remaining values have to be a whole number of ticks.
+     */
+    public void updateBatch(int[] cols, DoubleBuffer values) {
+        int width = cols.length;
+        checkBatch(values.remaining(), width);
+        int start = values.position();
+        int end = values.limit();
+        for (int i = start; i < end; i += width) {
+            for (int j = 0; j < width; j++) {
+                update(cols[j], values.get(i + j));
+            }
+            commit();
+        }
+        values.position(end);
+    }
+
+    /**
+     * Applies update/commit cycles for all ticks remaining in the buffer and advances its position.
+     * Remaining values have to be a whole number of ticks.
+     */
+    public void updateBatch(int[] cols, LongBuffer values) {
+        int width = cols.length;
+        checkBatch(values.remaining(), width);
+        int start = values.position();
+        int end = values.limit();
+        for (int i = start; i < end; i += width) {
+            for (int j = 0; j < width; j++) {
+                update(cols[j], values.get(i + j));
+            }
+            commit();
+        }
+        values.position(end);
+    }
+
+    /**
+     * Specialises handler for the defined schema. Built-in {@link AcmDouble} and {@link AcmLong} functions
+     * are executed inline instead of interface calls, custom functions are called as before.
+     * Built-in functions sharing reference column, e.g. FIRST, SUM, MIN and MAX of a LAST column,
+     * run as one kernel reading header words once.
+     * Optional, handler is fully functional without it.
+     */
+    public void compile() {
+        if (plans == null) {
+            freeze();
+        }
+        for (AcmColumn column : columns) {
+            column.function = function(column);
+        }
+        int[][][] kernels = new int[columns.length][][];
+        for (int col = 0; col < columns.length; col++) {
+            kernels[col] = kernels(plans[col]);
+        }
+        this.kernels = kernels;
+    }
+
+    static AcmColumn.Function function(AcmColumn column) {
+        return BUILT_IN.getOrDefault(column.action(), AcmColumn.Function.CUSTOM);
     }
 
     @Override
     public boolean isEmpty(int col) {
-        return (buffer.getLong(statusOffset) >> col & 1L) == 0L;
+        return (status(col >>> 6) >> col & 1L) == 0L;
     }
 
     @Override
@@ -199,6 +568,16 @@ class AcmHandler implements AcmView {
         return buffer.getDouble(committedOffset);
     }
 
+    @Override
+    public long getCurrentLong(int col) {
+        return buffer.getLong(dataOffset(col, (provisioned[col >>> 6] >> col & 1L) == 0L));
+    }
+
+    @Override
+    public double getCurrentDouble(int col) {
+        return buffer.getDouble(dataOffset(col, (provisioned[col >>> 6] >> col & 1L) == 0L));
+    }
+
     /**
      * Sets value not triggering any calculations e.g. initial or cascading values.
      * {@link #commit()} still required.
@@ -223,11 +602,7 @@ class AcmHandler implements AcmView {
             long revision = getLong(revisionColumn);
             update(revisionColumn, revision);
         }
-        long committed = buffer.getLong(draftOffset) ^ provisioned;
-        buffer.putLong(draftOffset, committed);
-        long empty = buffer.getLong(statusOffset) | provisioned;
-        buffer.putLong(statusOffset, empty);
-        provisioned = 0L;
+        publish(false);
     }
 
     /**
@@ -248,10 +623,99 @@ class AcmHandler implements AcmView {
             long revision = getLong(revisionColumn);
             update(revisionColumn, revision);
         }
-        long committed = buffer.getLong(draftOffset) ^ provisioned;
-        buffer.putLong(draftOffset, committed);
-        buffer.putLong(statusOffset, 0L);
-        provisioned = 0L;
+        publish(true);
+    }
+
+    // Replaying journal entry: values are written to the draft as they are and committed, no functions triggered.
+    void apply(ByteBuffer log, int offset, boolean reset) {
+        int valueOffset = offset + 8 * words;
+        for (int i = 0; i < words; i++) {
+            long word = log.getLong(offset + 8 * i);
+            provisioned[i] = word;
+            while (word != 0L) {
+                int col = 64 * i + Long.numberOfTrailingZeros(word);
+                buffer.putLong(dataOffset(col, false), log.getLong(valueOffset));
+                valueOffset += 8;
+                word &= word - 1;
+            }
+        }
+        publishState();
+        updateStatus(reset);
+    }
+
+    // Draft value bits of the column for journal.
+    long draftBits(int col) {
+        return buffer.getLong(dataOffset(col, false));
+    }
+
+    private void publish(boolean reset) {
+        if (journal != null) {
+            journal.append(row(), provisioned, this, (reset ? AcmJournal.RESET : 0) | (isCursor() ? AcmJournal.CURSOR : 0));
+        }
+        publishState();
+        updateStatus(reset);
+        if (durability != null) {
+            int size = rowSize(columnList.size());
+            if (reset) {
+                durability.written(buffer, headerOffset, size);
+            } else {
+                durability.committed(buffer, headerOffset, size);
+            }
+        }
+    }
+
+    // Commit sets 'empty' status of provisioned columns, reset clears all.
+    private void updateStatus(boolean reset) {
+        for (int i = 0; i < words; i++) {
+            status[i] = reset ? 0L : status[i] | provisioned[i];
+            buffer.putLong(statusOffset + 8 * i, status[i]);
+            provisioned[i] = 0L;
+        }
+    }
+
+    boolean hasDraft() {
+        for (long word : provisioned) {
+            if (word != 0L) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Forgetting uncommitted values, draft area is overwritten by next updates anyway.
+    void discard() {
+        Arrays.fill(provisioned, 0L);
+    }
+
+    // Committing draft values with single store of either the draft word or the selector of bitmask copy.
+    // Fences keep draft values before the commit store and next draft values after it for concurrent readers.
+    private void publishState() {
+        if (!writeCombining) {
+            loadState();
+        }
+        if (words == 1) {
+            savedState[0] ^= provisioned[0];
+            VarHandle.releaseFence();
+            buffer.putLong(draftOffset, savedState[0]);
+        } else {
+            selector++;
+            int stateOffset = draftOffset + 8 + 8 * words * (int) (selector & 1L);
+            for (int i = 0; i < words; i++) {
+                savedState[i] ^= provisioned[i];
+                buffer.putLong(stateOffset + 8 * i, savedState[i]);
+            }
+            VarHandle.releaseFence();
+            buffer.putLong(draftOffset, selector);
+        }
+        VarHandle.storeStoreFence();
+    }
+
+    private int register(AcmColumn col) {
+        if (plans != null) {
+            throw new AcmException("Columns can not be added after byte buffer is set");
+        }
+        columnList.add(col);
+        return col.storeColumn;
     }
 
     private int linkColumn(AcmColumn col, int reference) {
@@ -259,8 +723,7 @@ class AcmHandler implements AcmView {
         validate(col.type, ref.type);
         col.referenceColumn = reference;
         ref.linkedColumns.add(col);
-        columnList.add(col);
-        return col.storeColumn;
+        return register(col);
     }
 
     // Column input type should be the same as reference column output type.
@@ -273,49 +736,297 @@ class AcmHandler implements AcmView {
         }
     }
 
-    private void processLinks(List<AcmColumn> links, long value) {
+    private static void checkBatch(int length, int offset, int ticks, int width) {
+        if (offset < 0 || ticks < 0 || width == 0 || offset + (long) ticks * width > length) {
+            throw new AcmException(String.format("Incorrect batch of %s ticks by %s columns at offset %s, array length %s",
+                    ticks, width, offset, length));
+        }
+    }
+
+    private static void checkBatch(int remaining, int width) {
+        if (width == 0 || remaining % width != 0) {
+            throw new AcmException(String.format("Incorrect batch of %s values remaining by %s columns", remaining, width));
+        }
+    }
+
+    // Freezing column graph into flat plans, each one lists linked columns in the order of recursive traversal.
+    private void freeze() {
+        int n = columnList.size();
+        columns = columnList.toArray(new AcmColumn[n]);
+        plans = new int[n][];
+        int[] plan = new int[n];
+        for (AcmColumn column : columns) {
+            int size = collect(column.linkedColumns, plan, 0);
+            plans[column.storeColumn] = Arrays.copyOf(plan, size);
+        }
+        allocate();
+    }
+
+    private void allocate() {
+        int n = columns.length;
+        longResults = new long[n];
+        doubleResults = new double[n];
+        halfSize = 8 * n;
+        words = words(n);
+        savedState = new long[words];
+        status = new long[words];
+        provisioned = new long[words];
+        setHeaderOffset(headerOffset);
+    }
+
+    private static int collect(List<AcmColumn> links, int[] plan, int size) {
         for (AcmColumn link : links) {
-            if (link.type == AcmColumn.Type.LONG) {
-                long newValue = link.longAction.apply(this, link.storeColumn, link.referenceColumn, value);
-                provision(link.storeColumn, newValue);
-                processLinks(link.linkedColumns, newValue);
+            plan[size++] = link.storeColumn;
+            size = collect(link.linkedColumns, plan, size);
+        }
+        return size;
+    }
+
+    // Reference column result is always calculated before linked column in the plan.
+    private void propagate(int col) {
+        if (kernels == null) {
+            for (int link : plans[col]) {
+                execute(link);
+            }
+            return;
+        }
+        for (int[] kernel : kernels[col]) {
+            if (kernel.length == 1) {
+                execute(kernel[0]);
+            } else if (columns[kernel[0]].type == AcmColumn.Type.LONG) {
+                executeLongs(kernel);
             } else {
-                double newValue = link.longToDoubleAction.apply(this, link.storeColumn, link.referenceColumn, value);
-                provision(link.storeColumn, newValue);
-                processLinks(link.linkedColumns, newValue);
+                executeDoubles(kernel);
             }
         }
     }
 
-    private void processLinks(List<AcmColumn> linkedColumns, double value) {
-        for (AcmColumn link : linkedColumns) {
-            if (link.type == AcmColumn.Type.DOUBLE) {
-                double newValue = link.doubleAction.apply(this, link.storeColumn, link.referenceColumn, value);
-                provision(link.storeColumn, newValue);
-                processLinks(link.linkedColumns, newValue);
-            } else {
-                long newValue = link.doubleToLongAction.apply(this, link.storeColumn, link.referenceColumn, value);
-                provision(link.storeColumn, newValue);
-                processLinks(link.linkedColumns, newValue);
+    private void execute(int col) {
+        AcmColumn column = columns[col];
+        int ref = column.referenceColumn;
+        switch (column.type) {
+            case DOUBLE: {
+                double newValue = applyDouble(column, col, doubleResults[ref]);
+                provision(col, newValue);
+                doubleResults[col] = newValue;
+                break;
+            }
+            case LONG: {
+                long newValue = applyLong(column, col, longResults[ref]);
+                provision(col, newValue);
+                longResults[col] = newValue;
+                break;
+            }
+            case DOUBLE_TO_LONG: {
+                long newValue = applyDoubleToLong(column, col, doubleResults[ref]);
+                provision(col, newValue);
+                longResults[col] = newValue;
+                break;
+            }
+            case LONG_TO_DOUBLE: {
+                double newValue = applyLongToDouble(column, col, longResults[ref]);
+                provision(col, newValue);
+                doubleResults[col] = newValue;
+                break;
+            }
+        }
+    }
+
+    // Splits plan into runs of built-in columns sharing reference column and header word, other columns run alone.
+    // Built-in functions read their own column only, so run members do not depend on each other.
+    private int[][] kernels(int[] plan) {
+        List<int[]> kernels = new ArrayList<>();
+        for (int i = 0; i < plan.length; ) {
+            int end = i + 1;
+            if (fusible(columns[plan[i]])) {
+                while (end < plan.length && fusible(columns[plan[end]])
+                        && columns[plan[end]].referenceColumn == columns[plan[i]].referenceColumn
+                        && plan[end] >>> 6 == plan[i] >>> 6) {
+                    end++;
+                }
+            }
+            kernels.add(Arrays.copyOfRange(plan, i, end));
+            i = end;
+        }
+        return kernels.toArray(new int[0][]);
+    }
+
+    private static boolean fusible(AcmColumn column) {
+        switch (column.type) {
+            case DOUBLE:
+            case LONG:
+                return column.function != AcmColumn.Function.CUSTOM && column.function != AcmColumn.Function.INCREMENT;
+            case DOUBLE_TO_LONG:
+                return column.function == AcmColumn.Function.COUNT;
+            default:
+                return false;
+        }
+    }
+
+    // Fused built-in functions of a double column, COUNT stores long.
+    private void executeDoubles(int[] kernel) {
+        int word = kernel[0] >>> 6;
+        long state = state(word);
+        long empty = ~status(word);
+        long mask = 0L;
+        double value = doubleResults[columns[kernel[0]].referenceColumn];
+        for (int col : kernel) {
+            int committedOffset = dataOffset + 8 * col + (int) (~state >>> col & 1L) * halfSize;
+            int draftOffset = dataOffset + 8 * col + (int) (state >>> col & 1L) * halfSize;
+            boolean isEmpty = (empty >>> col & 1L) != 0L;
+            mask |= 1L << col;
+            AcmColumn.Function function = columns[col].function;
+            if (function == AcmColumn.Function.COUNT) {
+                long count = buffer.getLong(committedOffset) + 1;
+                buffer.putLong(draftOffset, count);
+                longResults[col] = count;
+                continue;
+            }
+            double result;
+            switch (function) {
+                case SUM:
+                    result = buffer.getDouble(committedOffset) + value;
+                    break;
+                case MIN:
+                    result = isEmpty ? value : Math.min(value, buffer.getDouble(committedOffset));
+                    break;
+                case MAX:
+                    result = isEmpty ? value : Math.max(value, buffer.getDouble(committedOffset));
+                    break;
+                case FIRST:
+                    result = isEmpty ? value : buffer.getDouble(committedOffset);
+                    break;
+                default:
+                    result = value;
+            }
+            buffer.putDouble(draftOffset, result);
+            doubleResults[col] = result;
+        }
+        provisioned[word] |= mask;
+    }
+
+    // Fused built-in functions of a long column.
+    private void executeLongs(int[] kernel) {
+        int word = kernel[0] >>> 6;
+        long state = state(word);
+        long empty = ~status(word);
+        long mask = 0L;
+        long value = longResults[columns[kernel[0]].referenceColumn];
+        for (int col : kernel) {
+            int committedOffset = dataOffset + 8 * col + (int) (~state >>> col & 1L) * halfSize;
+            int draftOffset = dataOffset + 8 * col + (int) (state >>> col & 1L) * halfSize;
+            boolean isEmpty = (empty >>> col & 1L) != 0L;
+            mask |= 1L << col;
+            long result;
+            switch (columns[col].function) {
+                case SUM:
+                    result = buffer.getLong(committedOffset) + value;
+                    break;
+                case COUNT:
+                    result = buffer.getLong(committedOffset) + 1;
+                    break;
+                case MIN:
+                    result = isEmpty ? value : Math.min(value, buffer.getLong(committedOffset));
+                    break;
+                case MAX:
+                    result = isEmpty ? value : Math.max(value, buffer.getLong(committedOffset));
+                    break;
+                case FIRST:
+                    result = isEmpty ? value : buffer.getLong(committedOffset);
+                    break;
+                default:
+                    result = value;
             }
+            buffer.putLong(draftOffset, result);
+            longResults[col] = result;
+        }
+        provisioned[word] |= mask;
+    }
+
+    private double applyDouble(AcmColumn column, int col, double value) {
+        switch (column.function) {
+            case SUM:
+                return getDouble(col) + value;
+            case MIN:
+                return isEmpty(col) ? value : Math.min(value, getDouble(col));
+            case MAX:
+                return isEmpty(col) ? value : Math.max(value, getDouble(col));
+            case FIRST:
+                return isEmpty(col) ? value : getDouble(col);
+            case LAST:
+                return value;
+            default:
+                return column.doubleAction.apply(this, col, column.referenceColumn, value);
         }
     }
 
+    private long applyLong(AcmColumn column, int col, long value) {
+        switch (column.function) {
+            case SUM:
+                return getLong(col) + value;
+            case COUNT:
+                return getLong(col) + 1;
+            case MIN:
+                return isEmpty(col) ? value : Math.min(value, getLong(col));
+            case MAX:
+                return isEmpty(col) ? value : Math.max(value, getLong(col));
+            case FIRST:
+                return isEmpty(col) ? value : getLong(col);
+            case LAST:
+                return value;
+            case INCREMENT:
+                return value + 1L;
+            default:
+                return column.longAction.apply(this, col, column.referenceColumn, value);
+        }
+    }
+
+    private long applyDoubleToLong(AcmColumn column, int col, double value) {
+        if (column.function == AcmColumn.Function.COUNT) {
+            return getLong(col) + 1;
+        }
+        return column.doubleToLongAction.apply(this, col, column.referenceColumn, value);
+    }
+
+    private double applyLongToDouble(AcmColumn column, int col, long value) {
+        return column.longToDoubleAction.apply(this, col, column.referenceColumn, value);
+    }
+
     private void provision(int col, long value) {
         int provisionalOffset = dataOffset(col, false);
         buffer.putLong(provisionalOffset, value);
-        provisioned |= (1L << col);
+        provisioned[col >>> 6] |= (1L << col);
     }
 
     private void provision(int col, double value) {
         int provisionalOffset = dataOffset(col, false);
         buffer.putDouble(provisionalOffset, value);
-        provisioned |= (1L << col);
+        provisioned[col >>> 6] |= (1L << col);
     }
 
     private int dataOffset(int col, boolean committed) {
-        long savedState = buffer.getLong(draftOffset);
-        return dataOffset + shift(col, committed, savedState);
+        return dataOffset + shift(col, committed, state(col >>> 6));
+    }
+
+    // Committed/draft bitmask word of current row.
+    private long state(int word) {
+        if (writeCombining) {
+            return savedState[word];
+        }
+        if (words == 1) {
+            return buffer.getLong(draftOffset);
+        }
+        int copy = (int) (buffer.getLong(draftOffset) & 1L);
+        return buffer.getLong(draftOffset + 8 + 8 * (words * copy + word));
+    }
+
+    // Status word of current row, read-only buffer is not recovered in place.
+    private long status(int word) {
+        if (writeCombining) {
+            return status[word];
+        }
+        long status = buffer.getLong(statusOffset + 8 * word);
+        return buffer.isReadOnly() ? status | state(word) : status;
     }
 
     // Calculating draft/committed cell place inside 'data' area
@@ -324,7 +1035,6 @@ class AcmHandler implements AcmView {
         if (committed) {
             shift ^= 0x1; // inverted
         }
-        shift *= columnList.size();
-        return 8 * (col + shift);
+        return 8 * col + shift * halfSize;
     }
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2020 threadcat
+ *
+ *     https://github.com/threadcat/accumulating-record
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threadcat.acm;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.threadcat.acm.AcmTool.startsWith;
+
+/**
+ * Append-only log of commits for replication to a standby copy and for rebuild from checkpoint.
+ * Handler appends entry before its commit store, entry holds row, bitmask of changed columns
+ * and their new committed values. Table cursor move is an entry without columns. Entry length is stored last, zero length marks the end of the log.
+ * <pre>
+ * [length][row][flags][0][changed x words][value x changed]
+ * </pre>
+ * Replay writes values as they are without triggering functions, so target has to be a copy
+ * of the source at the start of the log e.g. checkpoint taken when log was cleared.
+ *
+ * @author threadcat
+ */
+public class AcmJournal {
+    static final byte[] MARKER = "ACM_JOURNAL".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 12;
+    static final int COLUMNS = VERSION + 4;
+    static final int DATA = COLUMNS + 16;
+    static final int RESET = 1;
+    // Entry written by table cursor, replay moves target cursor.
+    static final int CURSOR = 2;
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private final ByteBuffer buffer;
+    private final int columns;
+    private final int words;
+    // Reservation of space for concurrent row writers.
+    private final AtomicLong tail = new AtomicLong();
+    private final long[] noColumns;
+
+    /**
+     * Attaches journal buffer, usually memory mapped file. New buffer is initialised for specified number of columns,
+     * existing journal is positioned after its last entry.
+     */
+    public AcmJournal(ByteBuffer buffer, int columns) {
+        this.buffer = buffer;
+        this.columns = columns;
+        this.words = AcmHandler.words(columns);
+        this.noColumns = new long[words];
+        if (startsWith(buffer, MARKER)) {
+            if (buffer.getInt(COLUMNS) != columns) {
+                throw new AcmException(String.format("Incorrect number of columns %s, journal has %s columns",
+                        columns, buffer.getInt(COLUMNS)));
+            }
+        } else if (buffer.isReadOnly()) {
+            throw new AcmException("Read-only byte buffer is not initialised");
+        } else {
+            buffer.put(0, MARKER).putInt(VERSION, 1).putInt(COLUMNS, columns);
+        }
+        tail.set(end(DATA));
+    }
+
+    /**
+     * @return end of complete entries starting from given position.
+     */
+    public long end(long position) {
+        int offset = (int) position;
+        while (offset <= buffer.capacity() - 4) {
+            int length = (int) INT.getAcquire(buffer, offset);
+            if (length == 0) {
+                break;
+            }
+            offset += length;
+        }
+        return offset;
+    }
+
+    /**
+     * Applies entries to the record starting from given position.
+     *
+     * @return position after the last applied entry, see {@link #replay(AcmTable, long)}.
+     */
+    public long replay(AcmRecord target, long position) {
+        check(target);
+        int offset = (int) position;
+        for (int length; offset <= buffer.capacity() - 4 && (length = (int) INT.getAcquire(buffer, offset)) != 0; offset += length) {
+            target.apply(buffer, offset + 16, (buffer.getInt(offset + 8) & RESET) != 0);
+        }
+        return offset;
+    }
+
+    /**
+     * Applies entries to table rows starting from given position.
+     * Replay can be continued from returned position while source keeps committing.
+     *
+     * @return position after the last applied entry.
+     */
+    public long replay(AcmTable target, long position) {
+        check(target);
+        AcmRowCursor cursor = null;
+        int offset = (int) position;
+        for (int length; offset <= buffer.capacity() - 4 && (length = (int) INT.getAcquire(buffer, offset)) != 0; offset += length) {
+            int row = buffer.getInt(offset + 4);
+            int flags = buffer.getInt(offset + 8);
+            if ((flags & CURSOR) != 0 && target.getCursor() != row) {
+                target.setCursor(row);
+            }
+            if (cursor == null) {
+                cursor = target.cursor(row);
+            } else if (cursor.getRow() != row) {
+                cursor.bind(row);
+            }
+            if (length > 16 + 8 * words || (flags & RESET) != 0) {
+                cursor.apply(buffer, offset + 16, (flags & RESET) != 0);
+            }
+        }
+        // Table handler reloads cursor row written through the row cursor
+        target.refresh();
+        return offset;
+    }
+
+    /**
+     * Empties the journal, e.g. after checkpoint. Must not be called while handlers append.
+     */
+    public void clear() {
+        for (int i = DATA; i < tail.get() && i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) 0);
+        }
+        tail.set(DATA);
+    }
+
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    void check(AcmHandler handler) {
+        if (handler.columnCount() != columns) {
+            throw new AcmException(String.format("Incorrect number of columns %s, journal has %s columns",
+                    handler.columnCount(), columns));
+        }
+    }
+
+    // Called by table on cursor move.
+    void moved(int row, AcmHandler handler) {
+        append(row, noColumns, handler, CURSOR);
+    }
+
+    // Called by handler before its commit store, concurrent row writers reserve space with atomic add.
+    void append(int row, long[] provisioned, AcmHandler handler, int flags) {
+        int values = 0;
+        for (long word : provisioned) {
+            values += Long.bitCount(word);
+        }
+        int length = 16 + 8 * words + 8 * values;
+        long offset = tail.getAndAdd(length);
+        if (offset + length + 4 > buffer.capacity()) {
+            throw new AcmException("Journal is full, capacity " + buffer.capacity());
+        }
+        int position = (int) offset;
+        buffer.putInt(position + 4, row);
+        buffer.putInt(position + 8, flags);
+        buffer.putInt(position + 12, 0);
+        int valueOffset = position + 16 + 8 * words;
+        for (int i = 0; i < words; i++) {
+            long word = provisioned[i];
+            buffer.putLong(position + 16 + 8 * i, word);
+            while (word != 0L) {
+                int col = 64 * i + Long.numberOfTrailingZeros(word);
+                buffer.putLong(valueOffset, handler.draftBits(col));
+                valueOffset += 8;
+                word &= word - 1;
+            }
+        }
+        INT.setRelease(buffer, position, length);
+    }
+}
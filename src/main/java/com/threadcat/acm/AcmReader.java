@@ -0,0 +1,131 @@
+/*
+ * Copyright 2020 threadcat
+ *
+ *     https://github.com/threadcat/accumulating-record
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threadcat.acm;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Lock-free reader of committed data. Takes consistent snapshot of selected columns
+ * retrying while revision changes, never blocks the writer.
+ *
+ * @author threadcat
+ */
+public class AcmReader {
+    private final AcmHandler source;
+    private final int[] columns;
+    private final int[] slots;
+    private final long[] values;
+    private final long[] state;
+    private final int revisionColumn;
+    private long selector;
+
+    AcmReader(AcmHandler source, int[] columns) {
+        this.source = source;
+        this.columns = columns.clone();
+        this.slots = new int[source.columnCount()];
+        this.values = new long[columns.length];
+        this.state = new long[source.words()];
+        this.revisionColumn = source.getRevisionColumn();
+        Arrays.fill(slots, -1);
+        for (int i = 0; i < columns.length; i++) {
+            slots[columns[i]] = i;
+        }
+    }
+
+    /**
+     * Takes snapshot of a record.
+     *
+     * @return revision of the snapshot.
+     */
+    public long fetch() {
+        return fetch(0);
+    }
+
+    /**
+     * Takes snapshot of specified table row, row is ignored for a record.
+     *
+     * @return revision of the snapshot.
+     */
+    public long fetch(int row) {
+        ByteBuffer segment = source.segment(row);
+        int headerOffset = source.rowOffset(row);
+        int dataOffset = headerOffset + source.headerSize();
+        long revision = revision(segment, headerOffset, dataOffset);
+        while (true) {
+            // Revision cell may already hold a later commit, header word must not move either
+            long selector = this.selector;
+            for (int i = 0; i < columns.length; i++) {
+                int col = columns[i];
+                values[i] = segment.getLong(dataOffset + source.shift(col, true, state[col >>> 6]));
+            }
+            VarHandle.loadLoadFence();
+            long check = revision(segment, headerOffset, dataOffset);
+            if (check == revision && this.selector == selector) {
+                return revision;
+            }
+            revision = check;
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * @return latest committed revision of a record, cheap enough for polling.
+     */
+    public long revision() {
+        return revision(0);
+    }
+
+    /**
+     * @return latest committed revision of specified table row, cheap enough for polling.
+     */
+    public long revision(int row) {
+        ByteBuffer segment = source.segment(row);
+        int headerOffset = source.rowOffset(row);
+        return revision(segment, headerOffset, headerOffset + source.headerSize());
+    }
+
+    /**
+     * @return snapshot value of selected column.
+     */
+    public long getLong(int col) {
+        return values[slot(col)];
+    }
+
+    /**
+     * @return snapshot value of selected column.
+     */
+    public double getDouble(int col) {
+        return Double.longBitsToDouble(values[slot(col)]);
+    }
+
+    private long revision(ByteBuffer segment, int headerOffset, int dataOffset) {
+        selector = source.readState(segment, headerOffset, state);
+        VarHandle.acquireFence();
+        return segment.getLong(dataOffset + source.shift(revisionColumn, true, state[revisionColumn >>> 6]));
+    }
+
+    private int slot(int col) {
+        int slot = col < slots.length ? slots[col] : -1;
+        if (slot == -1) {
+            throw new AcmException("Column is not selected for reader " + col);
+        }
+        return slot;
+    }
+}
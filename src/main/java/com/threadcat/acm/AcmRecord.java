@@ -34,12 +34,12 @@ public class AcmRecord extends AcmHandler {
     static final int DATA = COMMITTED + 8;
 
     public AcmRecord() {
-        super(EMPTY, COMMITTED, DATA);
+        super(EMPTY);
     }
 
     @Override
     public int size() {
-        return DATA + super.size();
+        return EMPTY + super.size() + (schemaBlock ? AcmSchema.size(columnCount()) : 0);
     }
 
     @Override
@@ -47,9 +47,23 @@ public class AcmRecord extends AcmHandler {
         if (buffer.capacity() != this.size()) {
             throw new AcmException("Incorrect byte buffer capacity " + buffer);
         }
+        boolean initialised = AcmTool.startsWith(buffer, MARKER);
+        if (!initialised && buffer.isReadOnly()) {
+            throw new AcmException("Read-only byte buffer is not initialised");
+        }
+        int schemaOffset = EMPTY + super.size();
+        if (schemaBlock && initialised) {
+            if ((buffer.getInt(VERSION) & AcmSchema.FLAG) == 0) {
+                throw new AcmException("Record has no schema block");
+            }
+            AcmSchema.check(this, buffer, schemaOffset);
+        }
         super.setByteBuffer(buffer);
-        if (!AcmTool.startsWith(buffer, MARKER)) {
-            buffer.put(0, MARKER);
+        if (!initialised) {
+            buffer.put(0, MARKER).putInt(VERSION, version());
+            if (schemaBlock) {
+                AcmSchema.write(this, buffer, schemaOffset);
+            }
             reset();
         }
     }
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2020 threadcat
+ *
+ *     https://github.com/threadcat/accumulating-record
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threadcat.acm;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Aggregates table rows into summary record, e.g. whole-market totals from per-instrument rows.
+ * Row range is split across {@link ForkJoinPool}, partial results are merged in row order:
+ * SUM and COUNT add, MIN and MAX take extremum, FIRST and LAST take value of the first and the last non-empty row.
+ * Custom functions take part if merge function is supplied with {@link #setDoubleMerge(int, DoubleBinaryOperator)},
+ * otherwise they are skipped and left as they are in summary record.
+ * Revision column is skipped, summary record has its own.
+ * Rows are read as by random access methods, roll up a snapshot for a consistent view of a live table.
+ *
+ * @author threadcat
+ */
+public class AcmRollup {
+    private static final int THRESHOLD = 1024;
+    private final AcmTable table;
+    private final ForkJoinPool pool;
+    private final LongBinaryOperator[] longMerges;
+    private final DoubleBinaryOperator[] doubleMerges;
+
+    public AcmRollup(AcmTable table) {
+        this(table, ForkJoinPool.commonPool());
+    }
+
+    public AcmRollup(AcmTable table, ForkJoinPool pool) {
+        this.table = table;
+        this.pool = pool;
+        int columns = table.columnCount();
+        this.longMerges = new LongBinaryOperator[columns];
+        this.doubleMerges = new DoubleBinaryOperator[columns];
+        for (int col = 0; col < columns; col++) {
+            if (col == table.getRevisionColumn()) {
+                continue;
+            }
+            if (table.storesDouble(col)) {
+                doubleMerges[col] = doubleMerge(AcmHandler.function(table.column(col)));
+            } else {
+                longMerges[col] = longMerge(AcmHandler.function(table.column(col)));
+            }
+        }
+    }
+
+    /**
+     * Merge function of custom double column, applied to results of two adjacent row ranges.
+     */
+    public void setDoubleMerge(int col, DoubleBinaryOperator merge) {
+        if (!table.storesDouble(col)) {
+            throw new AcmException("Column does not store double values " + col);
+        }
+        doubleMerges[col] = merge;
+    }
+
+    /**
+     * Merge function of custom long column, applied to results of two adjacent row ranges.
+     */
+    public void setLongMerge(int col, LongBinaryOperator merge) {
+        if (table.storesDouble(col)) {
+            throw new AcmException("Column does not store long values " + col);
+        }
+        longMerges[col] = merge;
+    }
+
+    /**
+     * Aggregates rows [fromRow, toRow) and commits results to the same columns of target record in one transaction.
+     * Columns empty in all rows and custom columns without merge function are left as they are.
+     */
+    public void rollup(int fromRow, int toRow, AcmRecord target) {
+        if (fromRow < 0 || fromRow > toRow || toRow > table.getRows()) {
+            throw new AcmException(String.format("Incorrect row range %s to %s", fromRow, toRow));
+        }
+        int columns = table.columnCount();
+        if (target.columnCount() != columns) {
+            throw new AcmException(String.format("Target record has %s columns, expected %s", target.columnCount(), columns));
+        }
+        for (int col = 0; col < columns; col++) {
+            if (target.storesDouble(col) != table.storesDouble(col)) {
+                throw new AcmException("Target record column type mismatch " + col);
+            }
+        }
+        Partial result = pool.invoke(new Task(fromRow, toRow));
+        for (int col = 0; col < columns; col++) {
+            if (result.present[col]) {
+                if (doubleMerges[col] != null) {
+                    target.setDouble(col, Double.longBitsToDouble(result.values[col]));
+                } else {
+                    target.setLong(col, result.values[col]);
+                }
+            }
+        }
+        target.commit();
+    }
+
+    private Partial collect(int fromRow, int toRow) {
+        Partial partial = new Partial(table.columnCount());
+        for (int row = fromRow; row < toRow; row++) {
+            for (int col = 0; col < partial.values.length; col++) {
+                if ((longMerges[col] != null || doubleMerges[col] != null) && !table.isEmpty(row, col)) {
+                    partial.merge(col, table.getLong(row, col));
+                }
+            }
+        }
+        return partial;
+    }
+
+    static DoubleBinaryOperator doubleMerge(AcmColumn.Function function) {
+        switch (function) {
+            case SUM:
+            case COUNT:
+                return Double::sum;
+            case MIN:
+                return Math::min;
+            case MAX:
+                return Math::max;
+            case FIRST:
+                return (left, right) -> left;
+            case LAST:
+                return (left, right) -> right;
+            default:
+                return null;
+        }
+    }
+
+    static LongBinaryOperator longMerge(AcmColumn.Function function) {
+        switch (function) {
+            case SUM:
+            case COUNT:
+            case INCREMENT:
+                return Long::sum;
+            case MIN:
+                return Math::min;
+            case MAX:
+                return Math::max;
+            case FIRST:
+                return (left, right) -> left;
+            case LAST:
+                return (left, right) -> right;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Result of a row range, double values are kept as raw bits.
+     */
+    private final class Partial {
+        final long[] values;
+        final boolean[] present;
+
+        Partial(int columns) {
+            values = new long[columns];
+            present = new boolean[columns];
+        }
+
+        // Merges value of the next row range or row.
+        void merge(int col, long value) {
+            if (!present[col]) {
+                values[col] = value;
+                present[col] = true;
+            } else if (doubleMerges[col] != null) {
+                double merged = doubleMerges[col].applyAsDouble(Double.longBitsToDouble(values[col]), Double.longBitsToDouble(value));
+                values[col] = Double.doubleToRawLongBits(merged);
+            } else {
+                values[col] = longMerges[col].applyAsLong(values[col], value);
+            }
+        }
+
+        Partial merge(Partial next) {
+            for (int col = 0; col < values.length; col++) {
+                if (next.present[col]) {
+                    merge(col, next.values[col]);
+                }
+            }
+            return this;
+        }
+    }
+
+    private final class Task extends RecursiveTask<Partial> {
+        private static final long serialVersionUID = 1L;
+        private final int fromRow;
+        private final int toRow;
+
+        Task(int fromRow, int toRow) {
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected Partial compute() {
+            if (toRow - fromRow <= THRESHOLD) {
+                return collect(fromRow, toRow);
+            }
+            int middle = (fromRow + toRow) >>> 1;
+            Task left = new Task(fromRow, middle);
+            left.fork();
+            Partial right = new Task(middle, toRow).compute();
+            return left.join().merge(right);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020 threadcat
+ *
+ *     https://github.com/threadcat/accumulating-record
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threadcat.acm;
+
+/**
+ * Flyweight bound to a single {@link AcmTable} row, shares table schema and keeps its own row offsets.
+ * Rows are updated in any interleaved order without moving table cursor.
+ * Each row should be written through one handler only, see {@link #refresh()} after the row is changed elsewhere.
+ * {@inheritDoc}
+ *
+ * @author threadcat
+ */
+public class AcmRowCursor extends AcmHandler {
+    private final AcmTable table;
+    private int row;
+
+    AcmRowCursor(AcmTable table, int row) {
+        super(table, 0);
+        this.table = table;
+        bind(row);
+    }
+
+    public int getRow() {
+        return row;
+    }
+
+    @Override
+    int row() {
+        return row;
+    }
+
+    // Rebinding is used by journal replay only, cursors are bound once.
+    void bind(int row) {
+        if (row < 0 || row >= table.getRows()) {
+            throw new AcmException(String.format("Row %s is out of table range %s", row, table.getRows()));
+        }
+        this.row = row;
+        buffer = table.segment(row);
+        setHeaderOffset(table.rowOffset(row));
+        loadState();
+        recover();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2020 threadcat
+ *
+ *     https://github.com/threadcat/accumulating-record
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threadcat.acm;
+
+/**
+ * Writer of a single {@link AcmTable} row at a time, shares table schema.
+ * Row is owned through a lock word in the row header, so writers of different rows run in parallel.
+ * {@inheritDoc}
+ *
+ * @author threadcat
+ */
+public class AcmRowWriter extends AcmHandler {
+    // Unique across processes sharing the file, writers of one process are told apart by their row
+    private static final long OWNER = AcmTable.lockOwner(ProcessHandle.current());
+    private final AcmTable table;
+    private int row = -1;
+
+    AcmRowWriter(AcmTable table) {
+        super(table, 0);
+        this.table = table;
+    }
+
+    /**
+     * Acquires specified row spinning while it is owned by another writer.
+     */
+    public void lock(int row) {
+        while (!tryLock(row)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * @return true if specified row is acquired.
+     */
+    public boolean tryLock(int row) {
+        if (this.row != -1) {
+            throw new AcmException("Writer already holds row " + this.row);
+        }
+        if (!table.tryLock(row, OWNER)) {
+            return false;
+        }
+        this.row = row;
+        buffer = table.segment(row);
+        setHeaderOffset(table.rowOffset(row));
+        loadState();
+        recover();
+        return true;
+    }
+
+    /**
+     * Releases the row, uncommitted values are discarded.
+     */
+    public void unlock() {
+        if (row == -1) {
+            throw new AcmException("Writer holds no row");
+        }
+        discard();
+        table.unlock(row, OWNER);
+        row = -1;
+    }
+
+    /**
+     * @return locked row or -1.
+     */
+    public int getRow() {
+        return row;
+    }
+
+    @Override
+    int row() {
+        return row;
+    }
+}
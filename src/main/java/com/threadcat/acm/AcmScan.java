@@ -0,0 +1,272 @@
+/*
+ * Copyright 2020 threadcat
+ *
+ *     https://github.com/threadcat/accumulating-record
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threadcat.acm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bulk reductions of a table column over row range [fromRow, toRow), e.g. total volume across instruments.
+ * Walks each segment with fixed row stride resolving committed half from row state, independent accumulators
+ * keep several loads in flight. Empty cells are skipped, 'empty' status is recovered with committed bits
+ * as on attach, see {@link AcmArrowWriter}.
+ * Rows are read as by random access methods, use {@link AcmSnapshot} for a consistent view of a live table.
+ *
+ * @author threadcat
+ */
+public final class AcmScan {
+
+    private AcmScan() {
+    }
+
+    /**
+     * @return sum of non-empty cells of double column.
+     */
+    public static double sum(AcmTable table, int col, int fromRow, int toRow) {
+        check(table, col, fromRow, toRow, true);
+        double sum = 0.0;
+        for (int row = fromRow; row < toRow; ) {
+            int end = table.segmentEnd(row, toRow);
+            sum += sum(table, table.segment(row), table.rowOffset(row), end - row, col);
+            row = end;
+        }
+        return sum;
+    }
+
+    /**
+     * @return sum of non-empty cells of long column.
+     */
+    public static long sumLong(AcmTable table, int col, int fromRow, int toRow) {
+        check(table, col, fromRow, toRow, false);
+        long sum = 0L;
+        for (int row = fromRow; row < toRow; ) {
+            int end = table.segmentEnd(row, toRow);
+            sum += sumLong(table, table.segment(row), table.rowOffset(row), end - row, col);
+            row = end;
+        }
+        return sum;
+    }
+
+    /**
+     * @return minimum of non-empty cells of double column or NaN.
+     */
+    public static double min(AcmTable table, int col, int fromRow, int toRow) {
+        return extreme(table, col, fromRow, toRow, false);
+    }
+
+    /**
+     * @return maximum of non-empty cells of double column or NaN.
+     */
+    public static double max(AcmTable table, int col, int fromRow, int toRow) {
+        return extreme(table, col, fromRow, toRow, true);
+    }
+
+    /**
+     * @return minimum of non-empty cells of long column or Long.MAX_VALUE.
+     */
+    public static long minLong(AcmTable table, int col, int fromRow, int toRow) {
+        return extremeLong(table, col, fromRow, toRow, false);
+    }
+
+    /**
+     * @return maximum of non-empty cells of long column or Long.MIN_VALUE.
+     */
+    public static long maxLong(AcmTable table, int col, int fromRow, int toRow) {
+        return extremeLong(table, col, fromRow, toRow, true);
+    }
+
+    /**
+     * @return number of non-empty cells of any column.
+     */
+    public static long count(AcmTable table, int col, int fromRow, int toRow) {
+        check(table, col, fromRow, toRow);
+        long count = 0L;
+        int statusOffset = 8 * (col >>> 6);
+        for (int row = fromRow; row < toRow; ) {
+            int end = table.segmentEnd(row, toRow);
+            ByteBuffer segment = table.segment(row);
+            int stride = table.stride();
+            for (int i = row, offset = table.rowOffset(row); i < end; i++, offset += stride) {
+                long status = segment.getLong(offset + statusOffset) | table.stateWord(segment, offset, col);
+                count += status >>> col & 1L;
+            }
+            row = end;
+        }
+        return count;
+    }
+
+    /**
+     * @return sum of products of two double columns over rows where both are non-empty, e.g. price by volume.
+     */
+    public static double dot(AcmTable table, int colA, int colB, int fromRow, int toRow) {
+        check(table, colA, fromRow, toRow, true);
+        check(table, colB, fromRow, toRow, true);
+        double sum = 0.0;
+        for (int row = fromRow; row < toRow; ) {
+            int end = table.segmentEnd(row, toRow);
+            sum += dot(table, table.segment(row), table.rowOffset(row), end - row, colA, colB);
+            row = end;
+        }
+        return sum;
+    }
+
+    private static double extreme(AcmTable table, int col, int fromRow, int toRow, boolean max) {
+        check(table, col, fromRow, toRow, true);
+        double result = Double.NaN;
+        for (int row = fromRow; row < toRow; ) {
+            int end = table.segmentEnd(row, toRow);
+            double value = extreme(table, table.segment(row), table.rowOffset(row), end - row, col, max);
+            if (!Double.isNaN(value)) {
+                result = Double.isNaN(result) ? value : max ? Math.max(result, value) : Math.min(result, value);
+            }
+            row = end;
+        }
+        return result;
+    }
+
+    private static long extremeLong(AcmTable table, int col, int fromRow, int toRow, boolean max) {
+        check(table, col, fromRow, toRow, false);
+        long result = max ? Long.MIN_VALUE : Long.MAX_VALUE;
+        for (int row = fromRow; row < toRow; ) {
+            int end = table.segmentEnd(row, toRow);
+            long value = extremeLong(table, table.segment(row), table.rowOffset(row), end - row, col, max);
+            result = max ? Math.max(result, value) : Math.min(result, value);
+            row = end;
+        }
+        return result;
+    }
+
+    private static double sum(AcmTable table, ByteBuffer segment, int offset, int rows, int col) {
+        int stride = table.stride();
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int i = 0;
+        for (; i + 4 <= rows; i += 4, offset += 4 * stride) {
+            s0 += doubleAt(table, segment, offset, col, 0.0);
+            s1 += doubleAt(table, segment, offset + stride, col, 0.0);
+            s2 += doubleAt(table, segment, offset + 2 * stride, col, 0.0);
+            s3 += doubleAt(table, segment, offset + 3 * stride, col, 0.0);
+        }
+        for (; i < rows; i++, offset += stride) {
+            s0 += doubleAt(table, segment, offset, col, 0.0);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    private static long sumLong(AcmTable table, ByteBuffer segment, int offset, int rows, int col) {
+        int stride = table.stride();
+        long s0 = 0L, s1 = 0L, s2 = 0L, s3 = 0L;
+        int i = 0;
+        for (; i + 4 <= rows; i += 4, offset += 4 * stride) {
+            s0 += longAt(table, segment, offset, col, 0L);
+            s1 += longAt(table, segment, offset + stride, col, 0L);
+            s2 += longAt(table, segment, offset + 2 * stride, col, 0L);
+            s3 += longAt(table, segment, offset + 3 * stride, col, 0L);
+        }
+        for (; i < rows; i++, offset += stride) {
+            s0 += longAt(table, segment, offset, col, 0L);
+        }
+        return s0 + s1 + s2 + s3;
+    }
+
+    // NaN of empty cells is ignored by comparisons, result is NaN only if all cells are empty.
+    private static double extreme(AcmTable table, ByteBuffer segment, int offset, int rows, int col, boolean max) {
+        int stride = table.stride();
+        double m0 = Double.NaN, m1 = Double.NaN;
+        int i = 0;
+        for (; i + 2 <= rows; i += 2, offset += 2 * stride) {
+            double v0 = doubleAt(table, segment, offset, col, Double.NaN);
+            double v1 = doubleAt(table, segment, offset + stride, col, Double.NaN);
+            m0 = better(m0, v0, max);
+            m1 = better(m1, v1, max);
+        }
+        if (i < rows) {
+            m0 = better(m0, doubleAt(table, segment, offset, col, Double.NaN), max);
+        }
+        return better(m0, m1, max);
+    }
+
+    private static long extremeLong(AcmTable table, ByteBuffer segment, int offset, int rows, int col, boolean max) {
+        int stride = table.stride();
+        long empty = max ? Long.MIN_VALUE : Long.MAX_VALUE;
+        long m0 = empty, m1 = empty;
+        int i = 0;
+        for (; i + 2 <= rows; i += 2, offset += 2 * stride) {
+            long v0 = longAt(table, segment, offset, col, empty);
+            long v1 = longAt(table, segment, offset + stride, col, empty);
+            m0 = max ? Math.max(m0, v0) : Math.min(m0, v0);
+            m1 = max ? Math.max(m1, v1) : Math.min(m1, v1);
+        }
+        if (i < rows) {
+            long v0 = longAt(table, segment, offset, col, empty);
+            m0 = max ? Math.max(m0, v0) : Math.min(m0, v0);
+        }
+        return max ? Math.max(m0, m1) : Math.min(m0, m1);
+    }
+
+    private static double dot(AcmTable table, ByteBuffer segment, int offset, int rows, int colA, int colB) {
+        int stride = table.stride();
+        double s0 = 0.0, s1 = 0.0;
+        int i = 0;
+        for (; i + 2 <= rows; i += 2, offset += 2 * stride) {
+            s0 += doubleAt(table, segment, offset, colA, 0.0) * doubleAt(table, segment, offset, colB, 0.0);
+            s1 += doubleAt(table, segment, offset + stride, colA, 0.0) * doubleAt(table, segment, offset + stride, colB, 0.0);
+        }
+        if (i < rows) {
+            s0 += doubleAt(table, segment, offset, colA, 0.0) * doubleAt(table, segment, offset, colB, 0.0);
+        }
+        return s0 + s1;
+    }
+
+    private static double better(double current, double value, boolean max) {
+        if (Double.isNaN(current)) {
+            return value;
+        }
+        return max ? (value > current ? value : current) : (value < current ? value : current);
+    }
+
+    private static double doubleAt(AcmTable table, ByteBuffer segment, int offset, int col, double empty) {
+        long state = table.stateWord(segment, offset, col);
+        if (((segment.getLong(offset + 8 * (col >>> 6)) | state) >>> col & 1L) == 0L) {
+            return empty;
+        }
+        return segment.getDouble(offset + table.headerSize() + table.shift(col, true, state));
+    }
+
+    private static long longAt(AcmTable table, ByteBuffer segment, int offset, int col, long empty) {
+        long state = table.stateWord(segment, offset, col);
+        if (((segment.getLong(offset + 8 * (col >>> 6)) | state) >>> col & 1L) == 0L) {
+            return empty;
+        }
+        return segment.getLong(offset + table.headerSize() + table.shift(col, true, state));
+    }
+
+    private static void check(AcmTable table, int col, int fromRow, int toRow, boolean doubleColumn) {
+        check(table, col, fromRow, toRow);
+        if (table.storesDouble(col) != doubleColumn) {
+            throw new AcmException(String.format("Column %s does not store %s values", col, doubleColumn ? "double" : "long"));
+        }
+    }
+
+    private static void check(AcmTable table, int col, int fromRow, int toRow) {
+        if (col < 0 || col >= table.columnCount()) {
+            throw new AcmException("Column is out of range " + col);
+        }
+        if (fromRow < 0 || fromRow > toRow || toRow > table.getRows()) {
+            throw new AcmException(String.format("Incorrect row range %s to %s", fromRow, toRow));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2020 threadcat
+ *
+ *     https://github.com/threadcat/accumulating-record
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threadcat.acm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Schema block stored at the end of record or table file, see {@link AcmHandler#setSchemaBlock(boolean)}.
+ * Block describes every column, so reopening with different schema fails up front and tools read files without code.
+ * <pre>
+ * [column x columns][revision column][0][columns][magic]
+ * column: [type][function][0][0][reference][name x 24]
+ * </pre>
+ * Custom functions are named through {@link #registerDouble(String, AcmDoubleAction)} and its siblings, built-in ones by their function.
+ *
+ * @author threadcat
+ */
+public final class AcmSchema {
+    // Layout version flag for schema block.
+    static final int FLAG = 0x400;
+    static final int MAGIC = 0x41434D53;
+    // Entry of a column added by migration tool, filled in on first open.
+    static final byte UNKNOWN = -1;
+    static final int ENTRY = 32;
+    static final int NAME = 24;
+    private static final Map<Object, String> NAMES = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private AcmSchema() {
+    }
+
+    public static void registerDouble(String name, AcmDoubleAction action) {
+        put(name, action);
+    }
+
+    public static void registerLong(String name, AcmLongAction action) {
+        put(name, action);
+    }
+
+    public static void registerDoubleToLong(String name, AcmDoubleToLongAction action) {
+        put(name, action);
+    }
+
+    public static void registerLongToDouble(String name, AcmLongToDoubleAction action) {
+        put(name, action);
+    }
+
+    static int size(int columns) {
+        return ENTRY * columns + 16;
+    }
+
+    /**
+     * @return number of columns of the block ending at given offset or -1.
+     */
+    static int columns(ByteBuffer buffer, int end) {
+        if (end < 16 || buffer.getInt(end - 4) != MAGIC) {
+            return -1;
+        }
+        return buffer.getInt(end - 8);
+    }
+
+    static void write(AcmHandler handler, ByteBuffer buffer, int offset) {
+        int columns = handler.columnCount();
+        for (int col = 0; col < columns; col++) {
+            writeEntry(handler, col, buffer, offset + ENTRY * col);
+        }
+        int end = offset + ENTRY * columns;
+        buffer.putInt(end, handler.getRevisionColumn())
+                .putInt(end + 4, 0)
+                .putInt(end + 8, columns)
+                .putInt(end + 12, MAGIC);
+    }
+
+    static void check(AcmHandler handler, ByteBuffer buffer, int offset) {
+        int columns = handler.columnCount();
+        int end = offset + ENTRY * columns;
+        if (columns(buffer, end + 16) != columns) {
+            throw new AcmException(String.format("Schema mismatch, expected %s columns, file has %s",
+                    columns, columns(buffer, end + 16)));
+        }
+        if (buffer.getInt(end) != handler.getRevisionColumn()) {
+            throw new AcmException(String.format("Schema mismatch, expected revision column %s, file has %s",
+                    handler.getRevisionColumn(), buffer.getInt(end)));
+        }
+        ByteBuffer expected = ByteBuffer.allocate(ENTRY);
+        for (int col = 0; col < columns; col++) {
+            int entry = offset + ENTRY * col;
+            writeEntry(handler, col, expected, 0);
+            if (buffer.get(entry) == UNKNOWN) {
+                if (!buffer.isReadOnly()) {
+                    writeEntry(handler, col, buffer, entry);
+                }
+                continue;
+            }
+            for (int i = 0; i < ENTRY; i++) {
+                if (buffer.get(entry + i) != expected.get(i)) {
+                    throw new AcmException(String.format("Schema mismatch at column %s, expected %s, file has %s",
+                            col, describe(expected, 0), describe(buffer, entry)));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return text description of column entry e.g. 'LONG SUM of 2'.
+     */
+    static String describe(ByteBuffer buffer, int entry) {
+        byte type = buffer.get(entry);
+        if (type == UNKNOWN) {
+            return "UNKNOWN";
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(AcmColumn.Type.values()[type]).append(' ');
+        byte[] name = new byte[NAME];
+        buffer.get(entry + 8, name);
+        int length = 0;
+        while (length < NAME && name[length] != 0) {
+            length++;
+        }
+        sb.append(length > 0 ? new String(name, 0, length, StandardCharsets.US_ASCII) : "CUSTOM");
+        int reference = buffer.getInt(entry + 4);
+        if (reference != -1) {
+            sb.append(" of ").append(reference);
+        }
+        return sb.toString();
+    }
+
+    private static void put(String name, Object action) {
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length == 0 || bytes.length > NAME) {
+            throw new AcmException(String.format("Function name length has to be 1 to %s: %s", NAME, name));
+        }
+        NAMES.put(action, name);
+    }
+
+    private static void writeEntry(AcmHandler handler, int col, ByteBuffer buffer, int entry) {
+        AcmColumn column = handler.column(col);
+        AcmColumn.Function function = AcmHandler.function(column);
+        buffer.put(entry, (byte) column.type.ordinal())
+                .put(entry + 1, (byte) function.ordinal())
+                .putShort(entry + 2, (short) 0)
+                .putInt(entry + 4, column.referenceColumn);
+        String name = function == AcmColumn.Function.CUSTOM ? NAMES.get(column.action()) : function.name();
+        byte[] bytes = name == null ? new byte[0] : name.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < NAME; i++) {
+            buffer.put(entry + 8 + i, i < bytes.length ? bytes[i] : 0);
+        }
+    }
+}
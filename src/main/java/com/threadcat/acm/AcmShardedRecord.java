@@ -0,0 +1,247 @@
+/*
+ * Copyright 2020 threadcat
+ *
+ *     https://github.com/threadcat/accumulating-record
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threadcat.acm;
+
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Record accumulated by many producer threads without contention, similar to LongAdder.
+ * Each thread claims its own stripe, stripes are separate records padded to cache line pairs in shared buffer.
+ * Reads merge committed values of all stripes with column merge semantics, see {@link AcmRollup}.
+ * FIRST and LAST have no order across stripes, so like custom columns they need merge function set.
+ * Revision column merges to the total number of commits and resets.
+ * Like LongAdder sum, merged read is not an atomic snapshot across stripes.
+ * <pre>
+ *     AcmRecord totals = ...; // defines schema, byte buffer set
+ *     AcmShardedRecord sharded = new AcmShardedRecord(totals, 16);
+ *     sharded.setByteBuffer(ByteBuffer.allocateDirect(sharded.size()));
+ *     // producer thread
+ *     AcmShardedRecord.Shard shard = sharded.shard();
+ *     shard.update(volume, 100L);
+ *     shard.commit();
+ *     // any thread
+ *     sharded.getLong(volume);
+ * </pre>
+ *
+ * @author threadcat
+ */
+public class AcmShardedRecord {
+    // Two cache lines, adjacent line prefetch pulls pairs.
+    private static final int PADDING = 128;
+    private final AcmRecord schema;
+    private final int stripes;
+    private final int stripeSize;
+    private final LongBinaryOperator[] longMerges;
+    private final DoubleBinaryOperator[] doubleMerges;
+    private final AtomicInteger claimed = new AtomicInteger();
+    private final ThreadLocal<Shard> shards = new ThreadLocal<>();
+    private ByteBuffer buffer;
+
+    /**
+     * @param schema  - record defining columns, byte buffer has to be set.
+     * @param stripes - maximum number of producer threads.
+     */
+    public AcmShardedRecord(AcmRecord schema, int stripes) {
+        if (stripes < 1) {
+            throw new AcmException("Incorrect number of stripes " + stripes);
+        }
+        this.schema = schema;
+        this.stripes = stripes;
+        this.stripeSize = (AcmHandler.rowSize(schema.columnCount()) + PADDING - 1) & -PADDING;
+        int columns = schema.columnCount();
+        this.longMerges = new LongBinaryOperator[columns];
+        this.doubleMerges = new DoubleBinaryOperator[columns];
+        for (int col = 0; col < columns; col++) {
+            AcmColumn.Function function = AcmHandler.function(schema.column(col));
+            if (function == AcmColumn.Function.FIRST || function == AcmColumn.Function.LAST) {
+                continue;
+            }
+            if (schema.storesDouble(col)) {
+                doubleMerges[col] = AcmRollup.doubleMerge(function);
+            } else {
+                longMerges[col] = AcmRollup.longMerge(function);
+            }
+        }
+    }
+
+    public int size() {
+        return PADDING + stripes * stripeSize;
+    }
+
+    /**
+     * Sets zeroed or previously used buffer, stripes keep their committed values.
+     */
+    public void setByteBuffer(ByteBuffer buffer) {
+        if (buffer.capacity() != size()) {
+            throw new AcmException("Incorrect byte buffer capacity " + buffer);
+        }
+        if (this.buffer != null) {
+            throw new AcmException("Byte buffer is already set");
+        }
+        this.buffer = buffer;
+    }
+
+    /**
+     * Merge function of custom double column.
+     */
+    public void setDoubleMerge(int col, DoubleBinaryOperator merge) {
+        if (!schema.storesDouble(col)) {
+            throw new AcmException("Column does not store double values " + col);
+        }
+        doubleMerges[col] = merge;
+    }
+
+    /**
+     * Merge function of custom long column.
+     */
+    public void setLongMerge(int col, LongBinaryOperator merge) {
+        if (schema.storesDouble(col)) {
+            throw new AcmException("Column does not store long values " + col);
+        }
+        longMerges[col] = merge;
+    }
+
+    /**
+     * @return stripe of the calling thread, claimed on first call.
+     */
+    public Shard shard() {
+        Shard shard = shards.get();
+        if (shard == null) {
+            if (buffer == null) {
+                throw new AcmException("Byte buffer has to be set first");
+            }
+            int stripe = claimed.getAndIncrement();
+            if (stripe >= stripes) {
+                throw new AcmException(String.format("All %s stripes are claimed", stripes));
+            }
+            shard = new Shard(this, stripe);
+            shards.set(shard);
+        }
+        return shard;
+    }
+
+    /**
+     * @return true if column is empty in all stripes.
+     */
+    public boolean isEmpty(int col) {
+        VarHandle.acquireFence();
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            if (present(offset(stripe), col)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getLong(int col) {
+        return merged(col);
+    }
+
+    public double getDouble(int col) {
+        return Double.longBitsToDouble(merged(col));
+    }
+
+    /**
+     * Sets merged values as drafts of target record with the same schema and commits them in one transaction.
+     * Revision column and columns empty in all stripes are left as they are.
+     * Nothing is set if any other column has no merge function.
+     */
+    public void merge(AcmRecord target) {
+        if (target.columnCount() != schema.columnCount()) {
+            throw new AcmException(String.format("Target record has %s columns, expected %s",
+                    target.columnCount(), schema.columnCount()));
+        }
+        // Checked before any value is set, half merged draft would be published by next commit of the target
+        for (int col = 0; col < schema.columnCount(); col++) {
+            if (col != target.getRevisionColumn() && longMerges[col] == null && doubleMerges[col] == null && !isEmpty(col)) {
+                throw new AcmException("Merge function is not defined for custom, FIRST or LAST column " + col);
+            }
+        }
+        for (int col = 0; col < schema.columnCount(); col++) {
+            if (col == target.getRevisionColumn() || isEmpty(col)) {
+                continue;
+            }
+            if (schema.storesDouble(col)) {
+                target.setDouble(col, getDouble(col));
+            } else {
+                target.setLong(col, getLong(col));
+            }
+        }
+        target.commit();
+    }
+
+    private long merged(int col) {
+        if (longMerges[col] == null && doubleMerges[col] == null) {
+            throw new AcmException("Merge function is not defined for custom, FIRST or LAST column " + col);
+        }
+        VarHandle.acquireFence();
+        boolean found = false;
+        long result = 0L;
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            int offset = offset(stripe);
+            if (!present(offset, col)) {
+                continue;
+            }
+            long value = buffer.getLong(offset + schema.headerSize() + schema.shift(col, true, schema.stateWord(buffer, offset, col)));
+            if (!found) {
+                result = value;
+                found = true;
+            } else if (doubleMerges[col] != null) {
+                double merged = doubleMerges[col].applyAsDouble(Double.longBitsToDouble(result), Double.longBitsToDouble(value));
+                result = Double.doubleToRawLongBits(merged);
+            } else {
+                result = longMerges[col].applyAsLong(result, value);
+            }
+        }
+        return result;
+    }
+
+    private boolean present(int offset, int col) {
+        return (buffer.getLong(offset + 8 * (col >>> 6)) >>> col & 1L) != 0L;
+    }
+
+    // Leading padding keeps first stripe off the line of neighbouring heap data.
+    private int offset(int stripe) {
+        return PADDING + stripe * stripeSize;
+    }
+
+    /**
+     * Single-writer record of one producer thread, shares schema of the sharded record.
+     * Durability and journal of the schema record do not apply.
+     * {@inheritDoc}
+     */
+    public static class Shard extends AcmHandler {
+        private final int stripe;
+
+        Shard(AcmShardedRecord sharded, int stripe) {
+            super(sharded.schema, sharded.offset(stripe));
+            this.stripe = stripe;
+            this.durability = null;
+            this.journal = null;
+            setByteBuffer(sharded.buffer);
+        }
+
+        public int getStripe() {
+            return stripe;
+        }
+    }
+}
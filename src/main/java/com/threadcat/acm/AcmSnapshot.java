@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020 threadcat
+ *
+ *     https://github.com/threadcat/accumulating-record
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threadcat.acm;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Consistent copy of a live {@link AcmTable} taken while the writer keeps committing.
+ * Rows are copied in chunks with bulk copy, revision of every row is checked before and after the chunk copy,
+ * rows committed in between are copied again one by one. Table has to have revision column.
+ * Each row is consistent as of its own revision, copy can be attached as a table with the same schema.
+ *
+ * @author threadcat
+ */
+public class AcmSnapshot {
+    // Chunk is small enough to stay in cache between copy and revision check.
+    private static final int CHUNK_SIZE = 1 << 16;
+    // Rows mapped at once when copying to a file.
+    private static final long WINDOW_SIZE = 1L << 30;
+    private final AcmTable table;
+    private final AcmReader reader;
+    private final int stride;
+    private final int lock;
+    private final long[] revisions;
+
+    private AcmSnapshot(AcmTable table) {
+        this.table = table;
+        this.reader = table.reader();
+        this.stride = table.stride();
+        this.lock = (table.version() & AcmTable.ROW_LOCKS) != 0 ? 8 : 0;
+        this.revisions = new long[Math.max(1, CHUNK_SIZE / stride)];
+    }
+
+    /**
+     * Copies table to a buffer of {@link AcmTable#size(int)} capacity.
+     */
+    public static void copy(AcmTable table, ByteBuffer target) {
+        int rows = table.getRows();
+        if (target.capacity() != table.fileSize(rows)) {
+            throw new AcmException(String.format("Incorrect byte buffer capacity %s, expected %s",
+                    target.capacity(), table.fileSize(rows)));
+        }
+        AcmSnapshot snapshot = new AcmSnapshot(table);
+        snapshot.copyRows(target, AcmTable.DATA, 0, rows);
+        snapshot.copyTail(target, 0L);
+    }
+
+    /**
+     * Copies table to a file, not limited to 2 GB.
+     */
+    public static void copy(AcmTable table, FileChannel target) throws IOException {
+        int rows = table.getRows();
+        AcmSnapshot snapshot = new AcmSnapshot(table);
+        int windowRows = (int) Math.max(1, WINDOW_SIZE / snapshot.stride);
+        for (int first = 0; first < rows; first += windowRows) {
+            int count = Math.min(windowRows, rows - first);
+            ByteBuffer window = target.map(FileChannel.MapMode.READ_WRITE,
+                    AcmTable.fileSize(first, snapshot.stride), (long) count * snapshot.stride);
+            snapshot.copyRows(window, 0, first, count);
+        }
+        long tailOffset = AcmTable.fileSize(rows, snapshot.stride);
+        ByteBuffer tail = target.map(FileChannel.MapMode.READ_WRITE, tailOffset, table.fileSize(rows) - tailOffset);
+        snapshot.copyTail(tail, tailOffset);
+        ByteBuffer header = target.map(FileChannel.MapMode.READ_WRITE, 0, AcmTable.DATA);
+        snapshot.copyHeader(header);
+    }
+
+    // Table header is copied last, so that the file is recognised only when complete.
+    private void copyTail(ByteBuffer target, long targetBase) {
+        ByteBuffer tail = table.tailBuffer();
+        if (tail != null) {
+            int offset = (int) (AcmTable.fileSize(table.getRows(), stride) - targetBase);
+            target.position(offset);
+            target.put(tail.duplicate().clear());
+        }
+        if (targetBase == 0L) {
+            copyHeader(target);
+        }
+    }
+
+    private void copyHeader(ByteBuffer target) {
+        ByteBuffer header = table.segment(0).duplicate();
+        header.limit(AcmTable.DATA).position(0);
+        target.position(0);
+        target.put(header);
+    }
+
+    private void copyRows(ByteBuffer target, int targetOffset, int first, int count) {
+        int end = first + count;
+        for (int row = first; row < end; ) {
+            ByteBuffer segment = table.segment(row);
+            int rows = 1;
+            while (rows < revisions.length && row + rows < end && table.segment(row + rows) == segment) {
+                rows++;
+            }
+            for (int i = 0; i < rows; i++) {
+                revisions[i] = reader.revision(row + i);
+            }
+            int offset = targetOffset + (row - first) * stride;
+            copy(segment, row, rows, target, offset);
+            VarHandle.loadLoadFence();
+            for (int i = 0; i < rows; i++) {
+                long revision = revisions[i];
+                while (reader.revision(row + i) != revision) {
+                    revision = reader.revision(row + i);
+                    copy(segment, row + i, 1, target, offset + i * stride);
+                    VarHandle.loadLoadFence();
+                }
+                if (lock != 0) {
+                    target.putLong(offset + i * stride, 0L);
+                }
+            }
+            row += rows;
+        }
+    }
+
+    private void copy(ByteBuffer segment, int row, int rows, ByteBuffer target, int offset) {
+        ByteBuffer source = segment.duplicate();
+        int start = table.rowOffset(row) - lock;
+        source.limit(start + rows * stride).position(start);
+        target.position(offset);
+        target.put(source);
+    }
+}
@@ -17,13 +17,24 @@
  */
 package com.threadcat.acm;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
 
 import static com.threadcat.acm.AcmTool.startsWith;
 
 /**
  * Adapter to {@link AcmHandler} provides storage layout for a set of records.
+ * Tables larger than 2 GB are mapped as a chain of segments, see {@link #map(FileChannel, int)}.
+ * Optional key index placed after the rows maps instrument keys to rows, see {@link #setKeyIndex(boolean)}.
  * {@inheritDoc}
  *
  * @author threadcat
@@ -34,56 +45,402 @@ public class AcmTable extends AcmHandler {
     static final int CURSOR = VERSION + 4;
     static final int ROWS = CURSOR + 4;
     static final int DATA = ROWS + 4;
+    // Layout version flag for rows prefixed with lock word.
+    static final int ROW_LOCKS = 0x100;
+    // Layout version flag for key index following the rows.
+    static final int KEY_INDEX = 0x200;
+    private static final VarHandle LOCK = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    // PID namespace of this process in row lock owners, zero where it is not known.
+    private static final int NAMESPACE = namespace();
+    private boolean rowLocks;
+    private boolean keyIndex;
+    // Key index is [count][slot...], slot is [key][row + 1], zero row marks free slot.
+    private ByteBuffer index;
+    private int indexMask;
+    // Key index followed by schema block, see 'tailSize'.
+    private ByteBuffer tail;
+    private int rowSize;
+    // Bar mode: each row accumulates one time bucket, rows are used as a ring.
+    private int bucketColumn = -1;
+    private long bucketWidth;
+    private long bucketEnd;
+    private ByteBuffer header;
+    // Each segment is laid out as a table of (1 << segmentShift) rows, see 'map'.
+    private ByteBuffer[] segments;
+    private int segmentShift;
+    private int segmentMask;
+    // Row of the current header offsets, differs from cursor while another row is reset.
+    private int row;
+    // Cursor moves counted by this handle, see 'getMoves'.
+    private long moves;
+    private int movesCursor;
 
     public AcmTable() {
-        super(DATA, DATA + 8, DATA + 16);
+        super(DATA);
     }
 
     /**
      * Calculates buffer size required for specified table capacity.
      */
     public int size(int rows) {
-        return size(rows, size());
+        return toInt(rows, fileSize(rows));
+    }
+
+    /**
+     * Calculates file size required for specified table capacity, not limited to 2 GB.
+     */
+    public long fileSize(int rows) {
+        return fileSize(rows, stride()) + tailSize(rows);
+    }
+
+    /**
+     * Switches table to bar mode. Added column keeps start time of the row bucket.
+     * Update with event timestamp moves cursor to the next row when bucket boundary is crossed,
+     * the row after it is reset ahead of time, cursor wraps around at table capacity of at least 3 rows.
+     *
+     * @param width - bucket width in timestamp units e.g. 60_000 for minute bars with millisecond timestamps.
+     */
+    public int addBucketColumn(long width) {
+        if (bucketColumn != -1) {
+            throw new AcmException("Bucket column already defined");
+        }
+        if (width <= 0) {
+            throw new AcmException("Incorrect bucket width " + width);
+        }
+        bucketColumn = addColumn(AcmLong.LAST);
+        bucketWidth = width;
+        return bucketColumn;
+    }
+
+    /**
+     * Updates column of the row accumulating specified time bucket.
+     */
+    public void update(long timestamp, int col, double value) {
+        if (timestamp >= bucketEnd) {
+            roll(timestamp);
+        }
+        update(col, value);
+    }
+
+    /**
+     * Updates column of the row accumulating specified time bucket.
+     */
+    public void update(long timestamp, int col, long value) {
+        if (timestamp >= bucketEnd) {
+            roll(timestamp);
+        }
+        update(col, value);
+    }
+
+    /**
+     * Prefixes every row with a lock word to allow concurrent writers of different rows, see {@link #writer()}.
+     * Lock lives in the buffer, so it works across processes sharing memory mapped file.
+     * Locks of terminated processes are released when the table is attached to the buffer again.
+     * Liveness is checked in the PID namespace of the attaching process, locks taken from another namespace
+     * (e.g. container mapping the same file) are never released automatically.
+     * Has to be set before byte buffer.
+     */
+    public void setRowLocks(boolean rowLocks) {
+        if (segments != null) {
+            throw new AcmException("Row locks have to be set before byte buffer");
+        }
+        this.rowLocks = rowLocks;
+    }
+
+    /**
+     * Adds open addressing hash index of long keys to rows, see {@link #insertIfAbsent(long)}.
+     * Index is stored in the same buffer after the rows, so it survives restarts along with the data.
+     * Has to be set before byte buffer.
+     */
+    public void setKeyIndex(boolean keyIndex) {
+        if (segments != null) {
+            throw new AcmException("Key index has to be set before byte buffer");
+        }
+        this.keyIndex = keyIndex;
+    }
+
+    /**
+     * @return row assigned to the key or -1.
+     */
+    public int rowFor(long key) {
+        long row = index().getLong(probe(key) + 8);
+        return (int) row - 1;
+    }
+
+    /**
+     * Short symbol lookup, see {@link #key(CharSequence)}.
+     */
+    public int rowFor(CharSequence symbol) {
+        return rowFor(key(symbol));
+    }
+
+    /**
+     * Assigns next unused row to the key unless already assigned. Rows are taken in order starting from zero.
+     *
+     * @return row assigned to the key.
+     */
+    public int insertIfAbsent(long key) {
+        int offset = probe(key);
+        long row = index.getLong(offset + 8);
+        if (row != 0L) {
+            return (int) row - 1;
+        }
+        long count = index.getLong(0);
+        if (count == getRows()) {
+            throw new AcmException("No free rows for key " + key);
+        }
+        // Count goes first, so interrupted insert leaves unused row rather than row shared by two keys
+        index.putLong(0, count + 1);
+        index.putLong(offset, key);
+        VarHandle.releaseFence();
+        index.putLong(offset + 8, count + 1);
+        if (durability != null) {
+            durability.written(index, 0, 8);
+            durability.written(index, offset, 16);
+        }
+        return (int) count;
+    }
+
+    /**
+     * Short symbol insert, see {@link #key(CharSequence)}.
+     */
+    public int insertIfAbsent(CharSequence symbol) {
+        return insertIfAbsent(key(symbol));
+    }
+
+    /**
+     * @return number of keys in the index.
+     */
+    public int keyCount() {
+        return (int) index().getLong(0);
+    }
+
+    /**
+     * Packs up to 8 ASCII characters into long key without allocation.
+     * Symbol keys and numeric keys should not be mixed in one table.
+     */
+    public static long key(CharSequence symbol) {
+        int length = symbol.length();
+        if (length > 8) {
+            throw new AcmException("Key is longer than 8 characters: " + symbol);
+        }
+        long key = 0L;
+        for (int i = 0; i < length; i++) {
+            char c = symbol.charAt(i);
+            if (c == 0 || c > 127) {
+                throw new AcmException("Key is not ASCII: " + symbol);
+            }
+            key = key << 8 | c;
+        }
+        return key;
+    }
+
+    /**
+     * Creates flyweight bound to specified row, see {@link AcmRowCursor}.
+     * Cursor header and table offsets are not changed by its updates.
+     */
+    public AcmRowCursor cursor(int row) {
+        return new AcmRowCursor(this, row);
+    }
+
+    /**
+     * Creates row writer sharing schema of this table. Each writer thread should have its own instance.
+     */
+    public AcmRowWriter writer() {
+        if (!rowLocks) {
+            throw new AcmException("Table has no row locks");
+        }
+        return new AcmRowWriter(this);
+    }
+
+    @Override
+    protected int version() {
+        return super.version() | (rowLocks ? ROW_LOCKS : 0) | (keyIndex ? KEY_INDEX : 0);
     }
 
     public void setByteBuffer(ByteBuffer buffer) {
-        if (size() == 0) {
+        if (columnCount() == 0) {
             throw new AcmException("Columns have to be defined first for buffer size calculation");
         }
+        rowSize = stride();
+        int rows;
         if (startsWith(buffer, MARKER)) {
-            int rows = buffer.getInt(ROWS);
+            rows = buffer.getInt(ROWS);
             if (size(rows) != buffer.capacity()) {
-                int cols = (buffer.capacity() - DATA) / rows;
+                int cols = columns((int) ((buffer.capacity() - DATA - tailSize(rows)) / rows));
                 throw new AcmException(String.format("Incorrect number of columns, expected %s columns and %s rows", cols, rows));
             }
-            super.setByteBuffer(buffer);
         } else {
-            if ((buffer.capacity() - DATA) % (16 + size()) != 0) {
-                throw new AcmException(String.format("Incorrect byte buffer capacity %s", buffer.capacity()));
+            rows = capacityRows(buffer.capacity());
+        }
+        long tailSize = tailSize(rows);
+        ByteBuffer tail = tailSize > 0 ? buffer.slice((int) fileSize(rows, rowSize), (int) tailSize) : null;
+        attach(new ByteBuffer[]{buffer}, 31, rows, tail);
+    }
+
+    /**
+     * Maps table file as a chain of buffers with long file offsets, so capacity is not limited to 2 GB.
+     * File is created with specified number of rows, existing file must have the same number of rows.
+     */
+    public void map(FileChannel channel, int rows) throws IOException {
+        if (columnCount() == 0) {
+            throw new AcmException("Columns have to be defined first for buffer size calculation");
+        }
+        map(channel, rows, segmentShift(), FileChannel.MapMode.READ_WRITE);
+    }
+
+    /**
+     * Maps existing table file read-only, e.g. for live readers in another process.
+     * Recovery state is not written, use {@link AcmReader} for consistent snapshots of committed data.
+     */
+    public void mapReadOnly(FileChannel channel) throws IOException {
+        if (columnCount() == 0) {
+            throw new AcmException("Columns have to be defined first for buffer size calculation");
+        }
+        ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, DATA);
+        if (!startsWith(head, MARKER)) {
+            throw new AcmException("Not a table file");
+        }
+        map(channel, rows(head), segmentShift(), FileChannel.MapMode.READ_ONLY);
+    }
+
+    // Segment N maps file from the start of its first row minus table header size. Segments share file pages
+    // at their edges, so every row has the same offset inside its segment as in a single buffer table.
+    void map(FileChannel channel, int rows, int segmentShift, FileChannel.MapMode mode) throws IOException {
+        rowSize = stride();
+        // Checked before mapping, as mapping grows the file
+        if (rows < 1) {
+            throw new AcmException("Incorrect number of rows " + rows);
+        }
+        checkBars(rows);
+        if (segmentShift < 0 || segmentShift > 31 || DATA + Math.min(1L << segmentShift, rows) * rowSize > Integer.MAX_VALUE) {
+            throw new AcmException(String.format("Incorrect segment shift %s for row size %s", segmentShift, rowSize));
+        }
+        if (channel.size() >= DATA) {
+            ByteBuffer head = ByteBuffer.allocate(DATA);
+            channel.read(head, 0L);
+            if (startsWith(head, MARKER)) {
+                if (rows(head) != rows) {
+                    throw new AcmException(String.format("Incorrect number of rows %s, file has %s rows", rows, rows(head)));
+                }
+                if (channel.size() != fileSize(rows)) {
+                    throw new AcmException(String.format("Incorrect file size %s, expected %s for %s rows",
+                            channel.size(), fileSize(rows), rows));
+                }
+            }
+        }
+        long segmentRows = 1L << segmentShift;
+        ByteBuffer[] segments = new ByteBuffer[(int) ((rows + segmentRows - 1) / segmentRows)];
+        for (int i = 0; i < segments.length; i++) {
+            long position = i * segmentRows * rowSize;
+            long count = Math.min(segmentRows, rows - i * segmentRows);
+            segments[i] = channel.map(mode, position, DATA + count * rowSize);
+        }
+        ByteBuffer tail = null;
+        long tailSize = tailSize(rows);
+        if (tailSize > 0) {
+            if (tailSize > Integer.MAX_VALUE) {
+                throw new AcmException(String.format("Key index and schema block for %s rows do not fit single byte buffer", rows));
+            }
+            tail = channel.map(mode, fileSize(rows, rowSize), tailSize);
+        }
+        attach(segments, segmentShift, rows, tail);
+    }
+
+    private void attach(ByteBuffer[] segments, int segmentShift, int rows, ByteBuffer tail) {
+        checkBars(rows);
+        this.tail = tail;
+        this.index = keyIndex ? tail.slice(0, (int) indexSize(rows)) : null;
+        this.indexMask = index == null ? 0 : (index.capacity() - 8) / 16 - 1;
+        int schemaOffset = tail == null ? 0 : tail.capacity() - AcmSchema.size(columnCount());
+        this.segments = segments;
+        this.segmentShift = segmentShift;
+        this.segmentMask = (int) ((1L << segmentShift) - 1);
+        header = segments[0];
+        if (startsWith(header, MARKER)) {
+            if (header.getInt(VERSION) != version()) {
+                throw new AcmException(String.format("Incorrect layout version %x, expected %x",
+                        header.getInt(VERSION), version()));
+            }
+            if (schemaBlock) {
+                AcmSchema.check(this, tail, schemaOffset);
+            }
+            if (rowLocks && !header.isReadOnly()) {
+                releaseDeadLocks(rows);
             }
-            super.setByteBuffer(buffer);
-            int rows = (buffer.capacity() - DATA) / (16 + size());
-            buffer.put(0, MARKER).putInt(VERSION, 1)
+            int cursor = header.getInt(CURSOR);
+            row = cursor;
+            movesCursor = cursor;
+            setHeaderOffset(rowOffset(cursor));
+            super.setByteBuffer(segment(cursor));
+            loadBucket();
+        } else if (header.isReadOnly()) {
+            throw new AcmException("Read-only byte buffer is not initialised");
+        } else {
+            row = 0;
+            movesCursor = 0;
+            setHeaderOffset(rowOffset(0));
+            super.setByteBuffer(header);
+            header.put(0, MARKER).putInt(VERSION, version())
                     .putInt(CURSOR, 0)
                     .putInt(ROWS, rows);
+            if (index != null) {
+                for (int i = 0; i < index.capacity(); i += 8) {
+                    index.putLong(i, 0L);
+                }
+            }
+            if (schemaBlock) {
+                AcmSchema.write(this, tail, schemaOffset);
+            }
             reset();
+            loadBucket();
         }
     }
 
+    /**
+     * Reloads cursor and its row state written by another process.
+     */
+    @Override
+    public void refresh() {
+        setOffsets(header.getInt(CURSOR));
+    }
+
     public int getCursor() {
-        return buffer.getInt(CURSOR);
+        return header.getInt(CURSOR);
     }
 
     public void setCursor(int row) {
-        buffer.putInt(CURSOR, row);
+        moves = getMoves() + Math.floorMod(row - movesCursor, getRows());
+        movesCursor = row;
+        header.putInt(CURSOR, row);
+        if (durability != null) {
+            durability.written(header, CURSOR, 4);
+        }
         setOffsets(row);
+        if (journal != null) {
+            journal.moved(row, this);
+        }
+        loadBucket();
+    }
+
+    /**
+     * Number of rows the cursor has moved forward, full laps of the ring included.
+     * Laps made by another handle sharing the buffer are seen as moves between the two cursor positions.
+     */
+    long getMoves() {
+        int cursor = header.getInt(CURSOR);
+        if (cursor != movesCursor) {
+            moves += Math.floorMod(cursor - movesCursor, getRows());
+            movesCursor = cursor;
+        }
+        return moves;
     }
 
     /**
      * @return table capacity.
      */
     public int getRows() {
-        return rows(buffer);
+        return rows(header);
     }
 
     /**
@@ -93,23 +450,32 @@ public class AcmTable extends AcmHandler {
     public void reset(int row) {
         setOffsets(row);
         reset();
-        setOffsets(buffer.getInt(CURSOR));
+        setOffsets(header.getInt(CURSOR));
     }
 
     /**
      * Random data access.
      */
     public long getLong(int row, int col) {
-        int dataOffset = dataOffset(row, col);
-        return buffer.getLong(dataOffset);
+        ByteBuffer segment = segment(row);
+        return segment.getLong(dataOffset(segment, row, col));
     }
 
     /**
      * Random data access.
      */
     public double getDouble(int row, int col) {
-        int dataOffset = dataOffset(row, col);
-        return buffer.getDouble(dataOffset);
+        ByteBuffer segment = segment(row);
+        return segment.getDouble(dataOffset(segment, row, col));
+    }
+
+    /**
+     * Random access to 'empty' status.
+     */
+    public boolean isEmpty(int row, int col) {
+        ByteBuffer segment = segment(row);
+        long status = segment.getLong(rowOffset(row) + 8 * (col >>> 6));
+        return (status >> col & 1L) == 0L;
     }
 
     /**
@@ -117,8 +483,12 @@ public class AcmTable extends AcmHandler {
      * different approach AcmTable vs AcmRecord to allow table row initialisation before moving cursor.
      */
     public void setLong(int row, int col, long value) {
-        int dataOffset = dataOffset(row, col);
-        buffer.putLong(dataOffset, value);
+        ByteBuffer segment = segment(row);
+        int offset = dataOffset(segment, row, col);
+        segment.putLong(offset, value);
+        if (durability != null) {
+            durability.written(segment, offset, 8);
+        }
     }
 
     /**
@@ -126,29 +496,241 @@ public class AcmTable extends AcmHandler {
      * different approach AcmTable vs AcmRecord to allow table row initialisation before moving cursor.
      */
     public void setDouble(int row, int col, double value) {
-        int dataOffset = dataOffset(row, col);
-        buffer.putDouble(dataOffset, value);
+        ByteBuffer segment = segment(row);
+        int offset = dataOffset(segment, row, col);
+        segment.putDouble(offset, value);
+        if (durability != null) {
+            durability.written(segment, offset, 8);
+        }
     }
 
     static int size(int rowCount, int rowSize) {
-        return DATA + rowCount * (16 + rowSize);
+        return toInt(rowCount, fileSize(rowCount, rowSize));
+    }
+
+    // Power of two slots, at least twice the number of rows.
+    static long indexSize(int rowCount) {
+        return 8L + 16L * (Long.highestOneBit(2L * Math.max(1, rowCount) - 1) << 1);
+    }
+
+    static long fileSize(int rowCount, int rowSize) {
+        return DATA + (long) rowCount * rowSize;
     }
 
     static int rows(ByteBuffer buffer) {
         return buffer.getInt(ROWS);
     }
 
-    private int dataOffset(int row, int col) {
-        int baseOffset = DATA + row * (16 + super.size());
-        int stateOffset = baseOffset + 8;
-        long state = buffer.getLong(stateOffset);
-        return baseOffset + 16 + shift(col, true, state);
+    @Override
+    ByteBuffer[] buffers() {
+        if (index == null) {
+            return segments;
+        }
+        ByteBuffer[] buffers = Arrays.copyOf(segments, segments.length + 1);
+        buffers[segments.length] = index;
+        return buffers;
+    }
+
+    ByteBuffer segment(int row) {
+        return segments[row >>> segmentShift];
+    }
+
+    int rowOffset(int row) {
+        return DATA + (row & segmentMask) * rowSize + (rowLocks ? 8 : 0);
+    }
+
+    // End of row range limited by the segment of the first row.
+    int segmentEnd(int row, int toRow) {
+        return (int) Math.min(toRow, ((long) (row >>> segmentShift) + 1) << segmentShift);
+    }
+
+    boolean tryLock(int row, long owner) {
+        return LOCK.compareAndSet(segment(row), rowOffset(row) - 8, 0L, owner);
+    }
+
+    void unlock(int row, long owner) {
+        if (!LOCK.compareAndSet(segment(row), rowOffset(row) - 8, owner, 0L)) {
+            throw new AcmException("Row is not locked by this writer " + row);
+        }
+    }
+
+    // Owner is [pid][namespace][start], rows held by terminated processes are released on attach.
+    // Their uncommitted values are discarded as the row header is never published.
+    private void releaseDeadLocks(int rows) {
+        for (int row = 0; row < rows; row++) {
+            long owner = (long) LOCK.getVolatile(segment(row), rowOffset(row) - 8);
+            if (owner != 0L && isDead(owner)) {
+                LOCK.compareAndSet(segment(row), rowOffset(row) - 8, owner, 0L);
+            }
+        }
+    }
+
+    /**
+     * Row lock owner of a process, start time tells reused PID from the original owner.
+     */
+    static long lockOwner(ProcessHandle process) {
+        return process.pid() << 32 | (long) NAMESPACE << 16 | start(process);
+    }
+
+    // Owner from another PID namespace may be alive, its PID means nothing here.
+    static boolean isDead(long owner) {
+        if ((int) (owner >>> 16 & 0xFFFF) != NAMESPACE) {
+            return false;
+        }
+        Optional<ProcessHandle> process = ProcessHandle.of(owner >>> 32);
+        if (process.isEmpty()) {
+            return true;
+        }
+        int start = (int) (owner & 0xFFFF);
+        int current = start(process.get());
+        return start != 0 && current != 0 && start != current;
+    }
+
+    // Hash of process start time, zero if it is not known.
+    private static int start(ProcessHandle process) {
+        return process.info().startInstant().map(instant -> {
+            long millis = instant.toEpochMilli();
+            return (int) (millis ^ millis >>> 16 ^ millis >>> 32) & 0xFFFF;
+        }).orElse(0);
+    }
+
+    private static int namespace() {
+        try {
+            // Linux link text is 'pid:[inode]'
+            return Files.readSymbolicLink(Path.of("/proc/self/ns/pid")).toString().hashCode() & 0xFFFF;
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            return 0;
+        }
+    }
+
+    private static int toInt(int rowCount, long size) {
+        if (size > Integer.MAX_VALUE) {
+            throw new AcmException(String.format("Table of %s rows does not fit single byte buffer, size %s", rowCount, size));
+        }
+        return (int) size;
+    }
+
+    // Largest number of rows fitting new buffer exactly.
+    private int capacityRows(int capacity) {
+        int low = 0;
+        int high = (capacity - DATA) / rowSize;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (fileSize(mid) <= capacity) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (capacity < DATA || fileSize(low) != capacity) {
+            throw new AcmException(String.format("Incorrect byte buffer capacity %s", capacity));
+        }
+        return low;
+    }
+
+    // Key index and schema block or null.
+    ByteBuffer tailBuffer() {
+        return tail;
+    }
+
+    private long tailSize(int rows) {
+        return (keyIndex ? indexSize(rows) : 0L) + (schemaBlock ? AcmSchema.size(columnCount()) : 0L);
+    }
+
+    private ByteBuffer index() {
+        if (index == null) {
+            throw new AcmException("Table has no key index");
+        }
+        return index;
+    }
+
+    // Linear probing, stops at the slot holding the key or at the first free slot.
+    private int probe(long key) {
+        ByteBuffer index = index();
+        long hash = key * 0x9E3779B97F4A7C15L;
+        int slot = (int) (hash ^ hash >>> 32) & indexMask;
+        while (true) {
+            int offset = 8 + 16 * slot;
+            if (index.getLong(offset + 8) == 0L) {
+                return offset;
+            }
+            VarHandle.acquireFence();
+            if (index.getLong(offset) == key) {
+                return offset;
+            }
+            slot = (slot + 1) & indexMask;
+        }
+    }
+
+    // Row after cursor is reset ahead of time, it must differ from the rows before cursor.
+    private void checkBars(int rows) {
+        if (bucketColumn != -1 && rows < 3) {
+            throw new AcmException(String.format("Bar mode requires at least 3 rows, table has %s rows", rows));
+        }
+    }
+
+    private void roll(long timestamp) {
+        if (bucketColumn == -1) {
+            throw new AcmException("Bucket column is not defined");
+        }
+        long start = timestamp - Math.floorMod(timestamp, bucketWidth);
+        if (bucketEnd != Long.MIN_VALUE) {
+            if (hasDraft()) {
+                throw new AcmException("Bucket boundary crossed with uncommitted values at " + timestamp);
+            }
+            int next = (getCursor() + 1) % getRows();
+            setCursor(next);
+            if (!isEmpty(bucketColumn)) {
+                // Row was not reset ahead of time e.g. process restarted in between
+                reset();
+            }
+            reset((next + 1) % getRows());
+        }
+        setLong(bucketColumn, start);
+        bucketEnd = start + bucketWidth;
+    }
+
+    // Current row bucket end or minimal value if row is not used yet.
+    private void loadBucket() {
+        if (bucketColumn == -1 || isEmpty(bucketColumn)) {
+            bucketEnd = Long.MIN_VALUE;
+        } else {
+            bucketEnd = getLong(bucketColumn) + bucketWidth;
+        }
+    }
+
+    private int segmentShift() {
+        int shift = 31;
+        while (shift > 0 && DATA + (1L << shift) * stride() > Integer.MAX_VALUE) {
+            shift--;
+        }
+        return shift;
+    }
+
+    int stride() {
+        return size() + (rowLocks ? 8 : 0);
+    }
+
+    private int dataOffset(ByteBuffer segment, int row, int col) {
+        int baseOffset = rowOffset(row);
+        long state = stateWord(segment, baseOffset, col);
+        return baseOffset + headerSize() + shift(col, true, state);
+    }
+
+    @Override
+    int row() {
+        return row;
+    }
+
+    @Override
+    boolean isCursor() {
+        return row == header.getInt(CURSOR);
     }
 
     private void setOffsets(int row) {
-        int base = DATA + row * (16 + super.size());
-        setStatusOffset(base);
-        setDraftOffset(base + 8);
-        setDataOffset(base + 16);
+        this.row = row;
+        buffer = segment(row);
+        setHeaderOffset(rowOffset(row));
+        loadState();
     }
 }
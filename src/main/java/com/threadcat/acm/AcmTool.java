@@ -18,76 +18,337 @@
 package com.threadcat.acm;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.IntStream;
 
 /**
- * Migration utility to transform ACM files changing column list.
+ * Migration utility to transform ACM files changing column list, also prints file info and exports data.
+ * Source and target files are memory mapped, table rows are migrated in parallel by row ranges.
+ * Only committed values are copied, contiguous column runs in a single bulk copy.
+ * Export streams committed values through reusable direct buffer, memory use does not depend on file size.
  *
  * @author threadcat
  */
 public class AcmTool {
+    // Row range mapped at once by migration worker.
+    private static final long CHUNK_SIZE = 1L << 30;
+    private static final int OUTPUT_SIZE = 1 << 16;
 
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && (args[0].equals("dump") || args[0].equals("export"))) {
+            exportCommand(args);
+            return;
+        }
         if (args.length != 1 && args.length != 3) {
             System.out.println("Usage: <source_file> <target_file> <columns>\n" +
-                    "Example to skip one column and insert another one: 0-3,6,N,5");
+                    "Example to skip one column and insert another one: 0-3,6,N,5\n" +
+                    "Usage: dump <source_file> [options]\n" +
+                    "Usage: export <source_file> <target_file> [options]\n" +
+                    "Options: --rows 0-99 --columns 0-3,6 --types LDDLL --format csv|binary");
             return;
         }
         String sourceFileName = args[0];
-        ByteBuffer bufferA = openReadOnly(sourceFileName);
         switch (args.length) {
             case 1:
-                printInfo(bufferA);
+                printInfo(Path.of(sourceFileName));
                 return;
             case 3:
-                String migrationMap = args[2];
-                List<Integer> newColumns = parseMapping(migrationMap);
-                // Creating new file
-                String targetFileName = args[1];
-                FileChannel channelB = FileChannel.open(Path.of(targetFileName),
-                        StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
-                // Setting file size
-                int oldRows = bufferA.getInt(AcmTable.ROWS);
-                int newSize = AcmTable.size(oldRows, newColumns.size());
-                channelB.position(newSize);
-                // Moving data
-                migrate(bufferA, channelB, newColumns);
+                migrate(Path.of(sourceFileName), Path.of(args[1]), parseMapping(args[2]));
                 System.out.println("Migration completed");
                 break;
         }
     }
 
-    private static void migrate(ByteBuffer bufferA, FileChannel channelB, List<Integer> columns) {
-        if (startsWith(bufferA, AcmRecord.MARKER)) {
-            migrateRecord(bufferA, channelB, columns);
-        } else if (startsWith(bufferA, AcmTable.MARKER)) {
-            migrateTable(bufferA, channelB, columns);
+    /**
+     * Creates new file with column list defined by mapping, -1 stands for new empty column.
+     */
+    static void migrate(Path source, Path target, List<Integer> columns) throws IOException {
+        try (FileChannel channelA = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel channelB = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE_NEW)) {
+            Layout layoutA = Layout.of(channelA);
+            for (int col : columns) {
+                if (col >= layoutA.columns) {
+                    throw new AcmException(String.format("Column %s is out of source range %s", col, layoutA.columns));
+                }
+            }
+            Layout layoutB = layoutA.migrate(columns.size());
+            // Setting file size up front, so that parallel mappings do not resize it
+            channelB.write(ByteBuffer.allocate(1), layoutB.fileSize - 1);
+            migrateRows(channelA, layoutA, channelB, layoutB, columns);
+            // Copying file header
+            ByteBuffer headerA = channelA.map(FileChannel.MapMode.READ_ONLY, 0, layoutA.base);
+            ByteBuffer headerB = channelB.map(FileChannel.MapMode.READ_WRITE, 0, layoutB.base);
+            headerB.put(headerA);
+            headerB.putInt(AcmTable.VERSION, layoutB.version);
+            // Key index does not depend on columns
+            long index = layoutA.fileSize - layoutA.trailer;
+            channelB.position(layoutB.fileSize - layoutB.trailer);
+            for (long n = 0; n < layoutA.index; ) {
+                n += channelA.transferTo(index + n, layoutA.index - n, channelB);
+            }
+            ByteBuffer schemaA = layoutA.schema(channelA, FileChannel.MapMode.READ_ONLY);
+            if (schemaA != null) {
+                migrateSchema(schemaA, layoutB.schema(channelB, FileChannel.MapMode.READ_WRITE), columns);
+            }
+        }
+    }
+
+    private static void exportCommand(String[] args) throws IOException {
+        boolean dump = args[0].equals("dump");
+        int options = dump ? 2 : 3;
+        if (args.length < options || (args.length - options) % 2 != 0) {
+            throw new IllegalArgumentException("Incorrect arguments, see usage");
+        }
+        int[] rows = null;
+        int[] columns = null;
+        String types = null;
+        boolean binary = false;
+        for (int i = options; i < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--rows":
+                    rows = parseRange(value);
+                    break;
+                case "--columns":
+                    columns = parseMapping(value).stream().mapToInt(Integer::intValue).toArray();
+                    break;
+                case "--types":
+                    types = value;
+                    break;
+                case "--format":
+                    binary = value.equals("binary");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        Path source = Path.of(args[1]);
+        if (dump) {
+            export(source, Channels.newChannel(System.out), binary, rows, columns, types);
+            System.out.flush();
         } else {
-            System.out.println("Unsupported file type");
+            try (FileChannel out = FileChannel.open(Path.of(args[2]), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE_NEW)) {
+                export(source, out, binary, rows, columns, types);
+            }
         }
     }
 
-    private static void migrateRecord(ByteBuffer bufferA, FileChannel channelB, List<Integer> columns) {
-        int baseOffset = AcmRecord.DATA;
+    /**
+     * Streams committed values as CSV with empty cells for empty values,
+     * or as packed little-endian 8 byte values of selected columns row by row.
+     *
+     * @param rows    - inclusive row range or null for all rows.
+     * @param columns - selected columns or null for all columns.
+     * @param types   - 'L' or 'D' per selected column formatting CSV values, null for all long.
+     */
+    static void export(Path source, WritableByteChannel out, boolean binary,
+                       int[] rows, int[] columns, String types) throws IOException {
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            Layout layout = Layout.of(channel);
+            if (columns == null) {
+                columns = IntStream.range(0, layout.columns).toArray();
+            }
+            for (int col : columns) {
+                if (col < 0 || col >= layout.columns) {
+                    throw new AcmException(String.format("Column %s is out of range %s", col, layout.columns));
+                }
+            }
+            if (types != null && types.length() != columns.length) {
+                throw new AcmException(String.format("Expected %s column types, got '%s'", columns.length, types));
+            }
+            int firstRow = rows == null ? 0 : rows[0];
+            int lastRow = rows == null ? layout.rows - 1 : rows[1];
+            if (firstRow < 0 || firstRow > lastRow || lastRow >= layout.rows) {
+                throw new AcmException(String.format("Incorrect row range %s-%s for %s rows", firstRow, lastRow, layout.rows));
+            }
+            ByteBuffer output = ByteBuffer.allocateDirect(OUTPUT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            StringBuilder text = new StringBuilder();
+            if (!binary) {
+                text.append("row");
+                for (int col : columns) {
+                    text.append(",c").append(col);
+                }
+                write(out, output, text.append('\n'));
+            }
+            long[] state = new long[AcmHandler.words(layout.columns)];
+            long[] status = new long[state.length];
+            int half = 8 * layout.columns;
+            int chunkRows = (int) Math.max(1, CHUNK_SIZE / layout.stride);
+            for (int first = firstRow; first <= lastRow; first += chunkRows) {
+                int count = Math.min(chunkRows, lastRow - first + 1);
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                        layout.base + (long) first * layout.stride, (long) count * layout.stride);
+                for (int i = 0; i < count; i++) {
+                    int offset = layout.lock + i * layout.stride;
+                    loadState(buffer, offset, state, status);
+                    int data = offset + AcmHandler.headerSize(state.length);
+                    if (!binary) {
+                        text.setLength(0);
+                        text.append(first + i);
+                    }
+                    for (int j = 0; j < columns.length; j++) {
+                        int col = columns[j];
+                        long word = state[col >>> 6];
+                        int cell = data + 8 * col + (int) ((word >> col & 1L) ^ 1L) * half;
+                        if (binary) {
+                            if (output.remaining() < 8) {
+                                flush(out, output);
+                            }
+                            output.putLong(buffer.getLong(cell));
+                        } else {
+                            text.append(',');
+                            if ((status[col >>> 6] >> col & 1L) != 0L) {
+                                if (types != null && types.charAt(j) == 'D') {
+                                    text.append(buffer.getDouble(cell));
+                                } else {
+                                    text.append(buffer.getLong(cell));
+                                }
+                            }
+                        }
+                    }
+                    if (!binary) {
+                        write(out, output, text.append('\n'));
+                    }
+                }
+            }
+            flush(out, output);
+        }
+    }
+
+    private static void write(WritableByteChannel out, ByteBuffer output, CharSequence text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            if (!output.hasRemaining()) {
+                flush(out, output);
+            }
+            output.put((byte) text.charAt(i));
+        }
+    }
+
+    private static void flush(WritableByteChannel out, ByteBuffer output) throws IOException {
+        output.flip();
+        while (output.hasRemaining()) {
+            out.write(output);
+        }
+        output.clear();
+    }
+
+    // Committed bitmask and recovered 'empty' status of the row, as AcmHandler does on attach.
+    private static void loadState(ByteBuffer buffer, int offset, long[] state, long[] status) {
+        int words = state.length;
+        int draftOffset = offset + 8 * words;
+        int stateOffset = words == 1 ? draftOffset : draftOffset + 8 + 8 * words * (int) (buffer.getLong(draftOffset) & 1L);
+        for (int i = 0; i < words; i++) {
+            state[i] = buffer.getLong(stateOffset + 8 * i);
+            status[i] = buffer.getLong(offset + 8 * i) | state[i];
+        }
+    }
+
+    private static void migrateRows(FileChannel channelA, Layout layoutA, FileChannel channelB, Layout layoutB,
+                                    List<Integer> columns) {
+        int[] mapping = columns.stream().mapToInt(Integer::intValue).toArray();
+        int rows = layoutA.rows;
+        int maxChunkRows = (int) Math.max(1, CHUNK_SIZE / Math.max(layoutA.stride, layoutB.stride));
+        int perCore = (rows + Runtime.getRuntime().availableProcessors() - 1) / Runtime.getRuntime().availableProcessors();
+        int chunkRows = Math.max(1, Math.min(maxChunkRows, perCore));
+        int chunks = (rows + chunkRows - 1) / chunkRows;
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            int first = chunk * chunkRows;
+            int count = Math.min(chunkRows, rows - first);
+            try {
+                ByteBuffer bufferA = channelA.map(FileChannel.MapMode.READ_ONLY,
+                        layoutA.base + (long) first * layoutA.stride, (long) count * layoutA.stride);
+                ByteBuffer bufferB = channelB.map(FileChannel.MapMode.READ_WRITE,
+                        layoutB.base + (long) first * layoutB.stride, (long) count * layoutB.stride);
+                long[] state = new long[AcmHandler.words(layoutA.columns)];
+                long[] status = new long[AcmHandler.words(layoutA.columns)];
+                long[] statusB = new long[AcmHandler.words(layoutB.columns)];
+                for (int i = 0; i < count; i++) {
+                    migrateRow(bufferA, layoutA.lock + i * layoutA.stride, layoutA,
+                            bufferB, layoutB.lock + i * layoutB.stride, layoutB,
+                            mapping, state, status, statusB);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // Target header is left zero apart from 'empty' status, so committed values go to the upper half.
+    private static void migrateRow(ByteBuffer bufferA, int offsetA, Layout layoutA,
+                                   ByteBuffer bufferB, int offsetB, Layout layoutB,
+                                   int[] mapping, long[] state, long[] status, long[] statusB) {
+        int wordsA = state.length;
+        loadState(bufferA, offsetA, state, status);
+        Arrays.fill(statusB, 0L);
+        int dataA = offsetA + AcmHandler.headerSize(wordsA);
+        int dataB = offsetB + AcmHandler.headerSize(statusB.length) + 8 * layoutB.columns;
+        int halfA = 8 * layoutA.columns;
+        for (int col = 0; col < mapping.length; ) {
+            int src = mapping[col];
+            if (src < 0) {
+                col++;
+                continue;
+            }
+            long half = (state[src >>> 6] >> src & 1L) ^ 1L;
+            int run = 1;
+            while (col + run < mapping.length && mapping[col + run] == src + run
+                    && ((state[(src + run) >>> 6] >> (src + run) & 1L) ^ 1L) == half) {
+                run++;
+            }
+            for (int i = 0; i < run; i++) {
+                statusB[(col + i) >>> 6] |= (status[(src + i) >>> 6] >> (src + i) & 1L) << (col + i);
+            }
+            int from = dataA + 8 * src + (int) half * halfA;
+            bufferA.limit(from + 8 * run).position(from);
+            bufferB.position(dataB + 8 * col);
+            bufferB.put(bufferA);
+            bufferA.limit(bufferA.capacity());
+            col += run;
+        }
+        for (int i = 0; i < statusB.length; i++) {
+            bufferB.putLong(offsetB + 8 * i, statusB[i]);
+        }
     }
 
-    private static void migrateTable(ByteBuffer bufferA, FileChannel channelB, List<Integer> columns) {
-        int baseOffset = AcmTable.DATA;
+    /**
+     * @return inclusive range 'from-to' or single row 'n' as two element array, not checked against table rows.
+     */
+    static int[] parseRange(String desc) {
+        String[] aa = desc.split("-", -1);
+        try {
+            if (aa.length == 1) {
+                int row = Integer.parseInt(aa[0]);
+                return new int[]{row, row};
+            }
+            if (aa.length == 2) {
+                return new int[]{Integer.parseInt(aa[0]), Integer.parseInt(aa[1])};
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new AcmException("Incorrect row range '" + desc + "', expected from-to");
     }
 
-    private static List<Integer> parseMapping(String desc) {
+    static List<Integer> parseMapping(String desc) {
         List<Integer> result = new ArrayList<>();
         for (String s : desc.split(",")) {
             String[] aa = s.split("-");
             if (aa.length > 1) {
                 int start = Integer.parseInt(aa[0]);
                 int end = Integer.parseInt(aa[1]);
-                for (int i = start; i < end; i++) {
+                for (int i = start; i <= end; i++) {
                     result.add(i);
                 }
             } else {
@@ -102,38 +363,142 @@ public class AcmTool {
         return result;
     }
 
-    private static void printInfo(ByteBuffer buffer) {
-        if (startsWith(buffer, AcmRecord.MARKER)) {
-            int columns = recordColumns(buffer);
-            System.out.printf("%s %d columns", new String(AcmRecord.MARKER), columns);
-        } else if (startsWith(buffer, AcmTable.MARKER)) {
-            int rows = AcmTable.rows(buffer);
-            int columns = tableColumns(buffer, rows);
-            System.out.printf("%s %d rows, %d columns", new String(AcmTable.MARKER), rows, columns);
-        } else {
-            System.out.println("Unsupported file type");
+    /**
+     * Copies schema entries in new column order, remapping references. New columns are filled in on first open.
+     */
+    private static void migrateSchema(ByteBuffer schemaA, ByteBuffer schemaB, List<Integer> columns) {
+        for (int col = 0; col < columns.size(); col++) {
+            int entryB = AcmSchema.ENTRY * col;
+            int source = columns.get(col);
+            if (source == -1) {
+                schemaB.put(entryB, AcmSchema.UNKNOWN);
+                continue;
+            }
+            int entryA = AcmSchema.ENTRY * source;
+            for (int i = 0; i < AcmSchema.ENTRY; i++) {
+                schemaB.put(entryB + i, schemaA.get(entryA + i));
+            }
+            int reference = schemaA.getInt(entryA + 4);
+            if (reference != -1) {
+                int mapped = columns.indexOf(reference);
+                if (mapped == -1) {
+                    // Reference column is dropped, entry is defined by the schema opening migrated file
+                    schemaB.put(entryB, AcmSchema.UNKNOWN);
+                }
+                schemaB.putInt(entryB + 4, mapped);
+            }
         }
+        int endA = schemaA.capacity() - 16;
+        int endB = schemaB.capacity() - 16;
+        int revision = schemaA.getInt(endA);
+        schemaB.putInt(endB, revision == -1 ? -1 : columns.indexOf(revision))
+                .putInt(endB + 4, 0)
+                .putInt(endB + 8, columns.size())
+                .putInt(endB + 12, AcmSchema.MAGIC);
     }
 
-    private static int tableColumns(ByteBuffer buffer, int rows) {
-        return (((buffer.capacity() - AcmRecord.DATA) / rows) - 16) / 16;
+    private static void printInfo(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Layout layout = Layout.of(channel);
+            if (layout.base == AcmRecord.EMPTY) {
+                System.out.printf("%s %d columns%n", new String(AcmRecord.MARKER), layout.columns);
+            } else {
+                System.out.printf("%s %d rows, %d columns, version %x%n",
+                        new String(AcmTable.MARKER), layout.rows, layout.columns, layout.version);
+            }
+            ByteBuffer schema = layout.schema(channel, FileChannel.MapMode.READ_ONLY);
+            if (schema != null) {
+                for (int col = 0; col < layout.columns; col++) {
+                    System.out.printf("%4d %s%n", col, AcmSchema.describe(schema, AcmSchema.ENTRY * col));
+                }
+                int revision = schema.getInt(schema.capacity() - 16);
+                if (revision != -1) {
+                    System.out.printf("revision column %d%n", revision);
+                }
+            }
+        } catch (AcmException e) {
+            System.out.println(e.getMessage());
+        }
     }
 
-    private static int recordColumns(ByteBuffer buffer) {
-        return (buffer.capacity() - AcmRecord.DATA) / 16;
-    }
+    /**
+     * File layout derived from its header and size.
+     */
+    static final class Layout {
+        final long base;
+        final int version;
+        final int rows;
+        final int columns;
+        final int lock;
+        final int stride;
+        final long index;
+        final int schema;
+        final long trailer;
+        final long fileSize;
+
+        private Layout(long base, int version, int rows, int columns, int lock, long index) {
+            this.base = base;
+            this.version = version;
+            this.rows = rows;
+            this.columns = columns;
+            this.lock = lock;
+            this.stride = lock + AcmHandler.rowSize(columns);
+            this.index = index;
+            this.schema = (version & AcmSchema.FLAG) != 0 ? AcmSchema.size(columns) : 0;
+            this.trailer = index + schema;
+            this.fileSize = base + (long) rows * stride + trailer;
+        }
+
+        static Layout of(FileChannel channel) throws IOException {
+            long size = channel.size();
+            ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, AcmTable.DATA));
+            if (size >= AcmRecord.EMPTY && startsWith(head, AcmRecord.MARKER)) {
+                int version = head.getInt(AcmRecord.VERSION);
+                int columns = (version & AcmSchema.FLAG) != 0 ? schemaColumns(channel)
+                        : size > Integer.MAX_VALUE ? -1 : AcmHandler.columns((int) size - AcmRecord.EMPTY);
+                return check(new Layout(AcmRecord.EMPTY, version, 1, columns, 0, 0L), size);
+            }
+            if (size >= AcmTable.DATA && startsWith(head, AcmTable.MARKER)) {
+                int version = head.getInt(AcmTable.VERSION);
+                int rows = AcmTable.rows(head);
+                int lock = (version & AcmTable.ROW_LOCKS) != 0 ? 8 : 0;
+                long index = (version & AcmTable.KEY_INDEX) != 0 ? AcmTable.indexSize(rows) : 0L;
+                int columns;
+                if ((version & AcmSchema.FLAG) != 0) {
+                    columns = schemaColumns(channel);
+                } else {
+                    long stride = rows == 0 ? 0 : (size - AcmTable.DATA - index) / rows;
+                    columns = stride > Integer.MAX_VALUE ? -1 : AcmHandler.columns((int) stride - lock);
+                }
+                return check(new Layout(AcmTable.DATA, version, rows, columns, lock, index), size);
+            }
+            throw new AcmException("Unsupported file type");
+        }
 
-    private static ByteBuffer openReadOnly(String fileName) throws IOException {
-        FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ);
-        long size = channel.size();
-        if (size >= Integer.MAX_VALUE) {
-            throw new IllegalArgumentException("File is too large " + fileName);
+        private static int schemaColumns(FileChannel channel) throws IOException {
+            long size = channel.size();
+            if (size < 16) {
+                return -1;
+            }
+            return AcmSchema.columns(channel.map(FileChannel.MapMode.READ_ONLY, size - 16, 16), 16);
         }
-        ByteBuffer buffer = ByteBuffer.allocate((int) size);
-        for (int n = 0; n < size && n != -1; ) {
-            n += channel.read(buffer, 0);
+
+        private static Layout check(Layout layout, long size) {
+            if (layout.columns < 0 || layout.fileSize != size) {
+                throw new AcmException("Unsupported file layout, size " + size);
+            }
+            return layout;
+        }
+
+        Layout migrate(int columns) {
+            int version = (this.version & ~0xFF) | (AcmHandler.words(columns) > 1 ? 2 : 1);
+            return new Layout(base, version, rows, columns, lock, index);
+        }
+
+        // Schema block or null.
+        ByteBuffer schema(FileChannel channel, FileChannel.MapMode mode) throws IOException {
+            return schema == 0 ? null : channel.map(mode, fileSize - schema, schema);
         }
-        return buffer;
     }
 
     static boolean startsWith(ByteBuffer buffer, byte[] marker) {
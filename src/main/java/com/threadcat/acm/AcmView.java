@@ -48,4 +48,22 @@ public interface AcmView {
      * @return uncommitted data.
      */
     double getDraftDouble(int col);
+
+    /**
+     * Optional, views without transaction state throw.
+     *
+     * @return uncommitted data if column is updated in current transaction, committed data otherwise.
+     */
+    default long getCurrentLong(int col) {
+        throw new AcmException("Current values are not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Optional, views without transaction state throw.
+     *
+     * @return uncommitted data if column is updated in current transaction, committed data otherwise.
+     */
+    default double getCurrentDouble(int col) {
+        throw new AcmException("Current values are not supported by " + getClass().getSimpleName());
+    }
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2020 threadcat
+ *
+ *     https://github.com/threadcat/accumulating-record
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threadcat.acm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sliding window aggregates of a double column over the last N rows of {@link AcmTable} ring, current row included.
+ * Rows left behind by the cursor are added to running sum and count and to monotonic min/max queues,
+ * evicted rows are subtracted. Queries take constant time regardless of window length.
+ * Cursor moves are counted by the table, window is rebuilt when it moved by window length or more
+ * between queries, full laps of the ring included.
+ *
+ * @author threadcat
+ */
+public class AcmWindow {
+    private final AcmTable table;
+    private final int col;
+    private final int closed;
+    // Off-heap ring of closed rows [present][value] followed by min and max queues of [sequence][value]
+    private final ByteBuffer buffer;
+    private final Queue minQueue;
+    private final Queue maxQueue;
+    private long sequence;
+    private long moves;
+    private int cursor;
+    private double sum;
+    private long count;
+
+    /**
+     * @param length - number of rows in the window including current one, less than table capacity.
+     */
+    public AcmWindow(AcmTable table, int col, int length) {
+        if (length < 1 || length >= table.getRows()) {
+            throw new AcmException(String.format("Incorrect window length %s for table of %s rows", length, table.getRows()));
+        }
+        if (col < 0 || col >= table.columnCount() || !table.storesDouble(col)) {
+            throw new AcmException(String.format("Column %s does not store double values", col));
+        }
+        this.table = table;
+        this.col = col;
+        this.closed = length - 1;
+        this.buffer = ByteBuffer.allocateDirect(Math.max(1, 48 * closed));
+        this.minQueue = new Queue(16 * closed, false);
+        this.maxQueue = new Queue(32 * closed, true);
+        moves = table.getMoves();
+        rebuild(table.getCursor());
+    }
+
+    /**
+     * @return sum of non-empty rows.
+     */
+    public double sum() {
+        sync();
+        int row = table.getCursor();
+        return table.isEmpty(row, col) ? sum : sum + table.getDouble(row, col);
+    }
+
+    /**
+     * @return number of non-empty rows.
+     */
+    public long count() {
+        sync();
+        return table.isEmpty(table.getCursor(), col) ? count : count + 1;
+    }
+
+    /**
+     * @return minimum of non-empty rows or NaN.
+     */
+    public double min() {
+        sync();
+        int row = table.getCursor();
+        double min = minQueue.isEmpty() ? Double.NaN : minQueue.front();
+        return table.isEmpty(row, col) ? min : minQueue.isEmpty() ? table.getDouble(row, col) : Math.min(min, table.getDouble(row, col));
+    }
+
+    /**
+     * @return maximum of non-empty rows or NaN.
+     */
+    public double max() {
+        sync();
+        int row = table.getCursor();
+        double max = maxQueue.isEmpty() ? Double.NaN : maxQueue.front();
+        return table.isEmpty(row, col) ? max : maxQueue.isEmpty() ? table.getDouble(row, col) : Math.max(max, table.getDouble(row, col));
+    }
+
+    private void sync() {
+        long current = table.getMoves();
+        if (current != moves) {
+            long gap = current - moves;
+            if (gap > closed) {
+                rebuild(table.getCursor());
+            } else {
+                int rows = table.getRows();
+                for (int i = 0; i < gap; i++) {
+                    push(cursor);
+                    cursor = (cursor + 1) % rows;
+                }
+            }
+            moves = current;
+        }
+    }
+
+    private void rebuild(int current) {
+        sequence = 0;
+        sum = 0.0;
+        count = 0;
+        minQueue.clear();
+        maxQueue.clear();
+        for (int i = 0; i < closed; i++) {
+            buffer.putLong(16 * i, 0L);
+        }
+        int rows = table.getRows();
+        for (int i = closed; i > 0; i--) {
+            push(Math.floorMod(current - i, rows));
+        }
+        cursor = current;
+    }
+
+    private void push(int row) {
+        if (closed == 0) {
+            return;
+        }
+        sequence++;
+        int slot = 16 * (int) (sequence % closed);
+        if (buffer.getLong(slot) != 0L) {
+            sum -= buffer.getDouble(slot + 8);
+            count--;
+        }
+        long evicted = sequence - closed;
+        minQueue.evict(evicted);
+        maxQueue.evict(evicted);
+        if (table.isEmpty(row, col)) {
+            buffer.putLong(slot, 0L);
+        } else {
+            double value = table.getDouble(row, col);
+            buffer.putLong(slot, 1L).putDouble(slot + 8, value);
+            sum += value;
+            count++;
+            minQueue.push(sequence, value);
+            maxQueue.push(sequence, value);
+        }
+    }
+
+    // Ring of [sequence][value] entries with values monotonic from the front.
+    private class Queue {
+        private final int base;
+        private final boolean max;
+        private int head;
+        private int size;
+
+        Queue(int base, boolean max) {
+            this.base = base;
+            this.max = max;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        double front() {
+            return buffer.getDouble(offset(head) + 8);
+        }
+
+        void clear() {
+            head = 0;
+            size = 0;
+        }
+
+        void evict(long sequence) {
+            while (size > 0 && buffer.getLong(offset(head)) <= sequence) {
+                head = (head + 1) % closed;
+                size--;
+            }
+        }
+
+        void push(long sequence, double value) {
+            while (size > 0) {
+                double last = buffer.getDouble(offset((head + size - 1) % closed) + 8);
+                if (max ? last > value : last < value) {
+                    break;
+                }
+                size--;
+            }
+            int offset = offset((head + size) % closed);
+            buffer.putLong(offset, sequence).putDouble(offset + 8, value);
+            size++;
+        }
+
+        private int offset(int index) {
+            return base + 16 * index;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package benchmarks;
+
+import com.threadcat.acm.AcmDouble;
+import com.threadcat.acm.AcmDoubleAction;
+import com.threadcat.acm.AcmFinance;
+import com.threadcat.acm.AcmLong;
+import com.threadcat.acm.AcmLongToDoubleAction;
+import com.threadcat.acm.AcmRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+@Fork(value = 1)
+@BenchmarkMode(Mode.Throughput)
+@Measurement(iterations = 1)
+@Warmup(iterations = 1)
+public class AcmFinanceBench {
+
+    @State(Scope.Benchmark)
+    public static class ExecutionPlan {
+        AcmRecord record;
+        Random random;
+        int price;
+        int quantity;
+        int time;
+        long timestamp;
+
+        @Param({"groups", "lambdas"})
+        String functions;
+
+        @Setup(Level.Trial)
+        public void onSetup() {
+            random = new Random();
+            record = new AcmRecord();
+            price = record.addColumn(AcmDouble.LAST);
+            quantity = record.addColumn(AcmDouble.LAST);
+            time = record.addColumn(AcmLong.LAST);
+            if (functions.equals("groups")) {
+                new AcmFinance.Vwap(record, price, quantity);
+                new AcmFinance.Twap(record, price, time);
+                new AcmFinance.Ewma(record, price, 20.0);
+                new AcmFinance.Variance(record, price);
+                new AcmFinance.Ohlc(record, price);
+            } else {
+                addLambdas(record, price, quantity, time);
+            }
+            record.compile();
+            record.setByteBuffer(ByteBuffer.allocate(record.size()));
+        }
+
+        // Typical hand-written equivalents capturing column numbers.
+        private static void addLambdas(AcmRecord record, int price, int quantity, int time) {
+            int last = record.addColumn(AcmDouble.LAST, price);
+            int notional = record.addColumn((AcmDoubleAction) (view, store, ref, value) ->
+                    view.getDouble(store) + view.getDraftDouble(last) * value, quantity);
+            int volume = record.addColumn(AcmDouble.SUM, quantity);
+            record.addColumn((AcmDoubleAction) (view, store, ref, value) -> view.getDraftDouble(notional) / value, volume);
+            int first = record.addColumn(AcmLong.FIRST, time);
+            int lastTime = record.addColumn(AcmLong.LAST, time);
+            int lastPrice = record.addColumn(AcmDouble.LAST, price);
+            int area = record.addColumn((AcmLongToDoubleAction) (view, store, ref, value) -> view.isEmpty(lastTime)
+                    ? 0.0 : view.getDouble(store) + view.getDouble(lastPrice) * (value - view.getLong(lastTime)), time);
+            record.addColumn((AcmDoubleAction) (view, store, ref, value) ->
+                    value / Math.max(1L, view.getDraftLong(lastTime) - view.getDraftLong(first)), area);
+            double alpha = 1.0 - Math.pow(0.5, 1.0 / 20.0);
+            record.addColumn((AcmDoubleAction) (view, store, ref, value) ->
+                    view.isEmpty(store) ? value : view.getDouble(store) + alpha * (value - view.getDouble(store)), price);
+            int count = record.addColumn(AcmDouble.COUNT, price);
+            int mean = record.addColumn((AcmDoubleAction) (view, store, ref, value) ->
+                    view.getDouble(store) + (value - view.getDouble(store)) / view.getDraftLong(count), price);
+            int m2 = record.addColumn((AcmDoubleAction) (view, store, ref, value) ->
+                    view.getDouble(store) + (value - view.getDouble(mean)) * (value - view.getDraftDouble(mean)), price);
+            record.addColumn((AcmDoubleAction) (view, store, ref, value) ->
+                    view.getDraftLong(count) > 1 ? value / (view.getDraftLong(count) - 1) : 0.0, m2);
+            record.addColumn(AcmDouble.FIRST, price);
+            int high = record.addColumn(AcmDouble.MAX, price);
+            int low = record.addColumn(AcmDouble.MIN, price);
+            record.addColumn((AcmDoubleAction) (view, store, ref, value) ->
+                    view.getDraftDouble(high) - view.getDraftDouble(low), price);
+            record.addColumn(AcmDouble.LAST, price);
+        }
+    }
+
+    @Benchmark
+    public void testTrades(ExecutionPlan plan) {
+        plan.record.update(plan.price, 100.0 + plan.random.nextDouble());
+        plan.record.update(plan.quantity, plan.random.nextDouble());
+        plan.record.update(plan.time, plan.timestamp += 1 + plan.random.nextInt(10));
+        plan.record.commit();
+    }
+}
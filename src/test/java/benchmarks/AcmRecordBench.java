@@ -24,13 +24,23 @@ public class AcmRecordBench {
         TestColumns columns;
         Random random;
 
+        @Param({"false", "true"})
+        boolean compiled;
+
+        @Param({"false", "true"})
+        boolean writeCombining;
+
         @Setup(Level.Invocation)
         public void onSetup() {
             random = new Random();
             record = new AcmRecord();
             columns = new TestColumns(record);
+            if (compiled) {
+                record.compile();
+            }
             record.setByteBuffer(ByteBuffer.allocate(record.size()));
             //record.setByteBuffer(memoryMappedFile(record.size()));
+            record.setWriteCombining(writeCombining);
         }
 
         private static MappedByteBuffer memoryMappedFile(long size) throws IOException {
@@ -0,0 +1,151 @@
+package com.threadcat.acm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AcmArrowWriterTest {
+
+    @Test
+    void testColumnVectors(@TempDir Path dir) throws IOException {
+        AcmTable table = new AcmTable();
+        int price = table.addColumn(AcmDouble.LAST);
+        int ticks = table.addColumn(AcmDouble.COUNT, price);
+        int rows = 5000;
+        table.setByteBuffer(ByteBuffer.allocate(table.size(rows)));
+        // Last row stays empty
+        for (int row = 0; row < rows - 1; row++) {
+            table.setCursor(row);
+            table.update(price, row * 0.5);
+            table.commit();
+        }
+        AcmArrowWriter writer = new AcmArrowWriter(table);
+        writer.setNames("price", "ticks");
+        assertThrows(AcmException.class, () -> writer.setNames("price"));
+        ByteBuffer file;
+        try (FileChannel channel = FileChannel.open(dir.resolve("table.arrow"), CREATE, READ, WRITE)) {
+            writer.write(channel);
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        byte[] magic = Arrays.copyOf(AcmArrowWriter.MAGIC, 8);
+        byte[] head = new byte[8];
+        file.get(0, head);
+        assertArrayEquals(magic, head);
+        byte[] tail = new byte[6];
+        file.get(file.capacity() - 6, tail);
+        assertArrayEquals(AcmArrowWriter.MAGIC, tail);
+        // Schema message followed by record batch message and its body
+        assertEquals(-1, file.getInt(8));
+        int batch = 16 + file.getInt(12);
+        assertEquals(-1, file.getInt(batch));
+        int body = batch + 8 + file.getInt(batch + 4);
+        assertEquals(0, body % 8);
+        int validitySize = 640;
+        int columnSize = validitySize + 8 * rows;
+        for (int row = 0; row < rows; row++) {
+            int valid = file.get(body + row / 8) >> (row % 8) & 1;
+            assertEquals(row < rows - 1 ? 1 : 0, valid);
+            if (valid == 1) {
+                assertEquals(row * 0.5, file.getDouble(body + validitySize + 8 * row));
+                assertEquals(1L, file.getLong(body + ticks * columnSize + validitySize + 8 * row));
+            }
+        }
+        // End of stream marker precedes the footer
+        int footer = file.capacity() - 10 - file.getInt(file.capacity() - 10);
+        assertEquals(body + 2 * columnSize, footer - 8);
+        assertEquals(-1, file.getInt(footer - 8));
+        assertEquals(0, file.getInt(footer - 4));
+    }
+
+    @Test
+    void testSchema(@TempDir Path dir) throws IOException {
+        AcmTable table = new AcmTable();
+        table.addColumn(AcmDouble.LAST);
+        table.addColumn(AcmLong.SUM);
+        table.setByteBuffer(ByteBuffer.allocate(table.size(2)));
+        AcmArrowWriter writer = new AcmArrowWriter(table);
+        writer.setNames("price", "volume");
+        ByteBuffer file = write(writer, dir);
+        ByteBuffer metadata = file.slice(16, file.getInt(12)).order(ByteOrder.LITTLE_ENDIAN);
+        int message = deref(metadata, 0);
+        assertEquals(1, metadata.get(message + field(metadata, message, 1)));
+        int schema = deref(metadata, message + field(metadata, message, 2));
+        int fields = deref(metadata, schema + field(metadata, schema, 1));
+        assertEquals(2, metadata.getInt(fields));
+        // Double column is FloatingPoint of double precision
+        int field = deref(metadata, fields + 4);
+        assertEquals("price", string(metadata, deref(metadata, field + field(metadata, field, 0))));
+        assertEquals(1, metadata.get(field + field(metadata, field, 1)));
+        assertEquals(3, metadata.get(field + field(metadata, field, 2)));
+        int type = deref(metadata, field + field(metadata, field, 3));
+        assertEquals(2, metadata.getShort(type + field(metadata, type, 0)));
+        // Long column is signed 64 bit Int
+        field = deref(metadata, fields + 8);
+        assertEquals("volume", string(metadata, deref(metadata, field + field(metadata, field, 0))));
+        assertEquals(2, metadata.get(field + field(metadata, field, 2)));
+        type = deref(metadata, field + field(metadata, field, 3));
+        assertEquals(64, metadata.getInt(type + field(metadata, type, 0)));
+        assertEquals(1, metadata.get(type + field(metadata, type, 1)));
+    }
+
+    @Test
+    void testRecoveredStatus(@TempDir Path dir) throws IOException {
+        AcmTable table = new AcmTable();
+        int price = table.addColumn(AcmDouble.LAST);
+        ByteBuffer buffer = ByteBuffer.allocate(table.size(2));
+        table.setByteBuffer(buffer);
+        // Reset on attach and two commits leave committed bit set
+        table.update(price, 1.0);
+        table.commit();
+        table.update(price, 1.5);
+        table.commit();
+        // Writer terminated after storing committed bitmask, before storing status
+        buffer.putLong(table.rowOffset(0), 0L);
+        assertTrue(table.isEmpty(0, price));
+        ByteBuffer file = write(new AcmArrowWriter(table), dir);
+        int batch = 16 + file.getInt(12);
+        int body = batch + 8 + file.getInt(batch + 4);
+        assertEquals(1, file.get(body) & 1);
+        assertEquals(1.5, file.getDouble(body + 64));
+    }
+
+    private static ByteBuffer write(AcmArrowWriter writer, Path dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir.resolve("table.arrow"), CREATE, READ, WRITE)) {
+            writer.write(channel);
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    // FlatBuffers offset stored at the position
+    private static int deref(ByteBuffer buffer, int position) {
+        return position + buffer.getInt(position);
+    }
+
+    // FlatBuffers table field offset from its vtable, zero for absent field
+    private static int field(ByteBuffer buffer, int table, int field) {
+        int vtable = table - buffer.getInt(table);
+        int entry = 4 + 2 * field;
+        return entry < buffer.getShort(vtable) ? buffer.getShort(vtable + entry) : 0;
+    }
+
+    private static String string(ByteBuffer buffer, int position) {
+        byte[] bytes = new byte[buffer.getInt(position)];
+        buffer.get(position + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,71 @@
+package com.threadcat.acm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AcmDurabilityTest {
+
+    @Test
+    void testEveryCommits(@TempDir Path dir) throws IOException, InterruptedException {
+        AcmRecord record = new AcmRecord();
+        int sum = record.addColumn(AcmLong.SUM);
+        try (FileChannel channel = FileChannel.open(dir.resolve("record.acm"), CREATE, READ, WRITE);
+             AcmDurability durability = AcmDurability.everyCommits(100)) {
+            record.setByteBuffer(channel.map(FileChannel.MapMode.READ_WRITE, 0, record.size()));
+            record.setDurability(durability);
+            for (int i = 0; i < 1000; i++) {
+                record.update(sum, 1L);
+                record.commit();
+            }
+            for (int i = 0; i < 100 && durability.flushes() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(durability.flushes() > 0);
+            assertThrows(AcmException.class, () -> record.setDurability(durability));
+        }
+        assertEquals(1000L, record.getLong(sum));
+    }
+
+    @Test
+    void testTableBarrier(@TempDir Path dir) throws IOException {
+        AcmTable table = new AcmTable();
+        table.setKeyIndex(true);
+        int last = table.addColumn(AcmDouble.LAST);
+        try (FileChannel channel = FileChannel.open(dir.resolve("table.acm"), CREATE, READ, WRITE);
+             AcmDurability durability = AcmDurability.onDemand()) {
+            table.map(channel, 10, 1, FileChannel.MapMode.READ_WRITE);
+            table.setDurability(durability);
+            AcmRowCursor cursor = table.cursor(table.insertIfAbsent("EURUSD"));
+            cursor.update(last, 1.1);
+            cursor.commit();
+            table.setCursor(7);
+            table.setDouble(9, last, 2.2);
+            durability.barrier();
+            assertEquals(1, durability.flushes());
+            durability.barrier();
+            assertEquals(1, durability.flushes());
+        }
+    }
+
+    @Test
+    void testHeapBuffer() {
+        AcmRecord record = new AcmRecord();
+        record.addColumn(AcmLong.SUM);
+        assertThrows(AcmException.class, () -> record.setDurability(AcmDurability.none()));
+        record.setByteBuffer(ByteBuffer.allocate(record.size()));
+        assertThrows(AcmException.class, () -> record.setDurability(AcmDurability.onDemand()));
+        assertThrows(AcmException.class, () -> AcmDurability.everyMicros(0));
+    }
+}
@@ -0,0 +1,61 @@
+package com.threadcat.acm;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AcmFinanceTest {
+    private static final double DELTA = 1e-9;
+
+    @Test
+    void testGroups() {
+        AcmRecord record = new AcmRecord();
+        int price = record.addColumn(AcmDouble.LAST);
+        int quantity = record.addColumn(AcmDouble.LAST);
+        int time = record.addColumn(AcmLong.LAST);
+        AcmFinance.Vwap vwap = new AcmFinance.Vwap(record, price, quantity);
+        AcmFinance.Twap twap = new AcmFinance.Twap(record, price, time);
+        AcmFinance.Ewma ewma = new AcmFinance.Ewma(record, price, 1.0);
+        AcmFinance.Variance variance = new AcmFinance.Variance(record, price);
+        AcmFinance.Ohlc ohlc = new AcmFinance.Ohlc(record, price);
+        record.setByteBuffer(ByteBuffer.allocate(record.size()));
+        double[] prices = {10.0, 12.0, 9.0, 11.0};
+        double[] quantities = {100.0, 50.0, 200.0, 150.0};
+        long[] times = {1000L, 1010L, 1040L, 1050L};
+        for (int i = 0; i < prices.length; i++) {
+            record.update(price, prices[i]);
+            record.update(quantity, quantities[i]);
+            record.update(time, times[i]);
+            record.commit();
+        }
+        assertEquals((1000.0 + 600.0 + 1800.0 + 1650.0) / 500.0, record.getDouble(vwap.vwap), DELTA);
+        assertEquals(500.0, record.getDouble(vwap.volume), DELTA);
+        // Each price holds until the next timestamp
+        assertEquals((10.0 * 10 + 12.0 * 30 + 9.0 * 10) / 50.0, record.getDouble(twap.twap), DELTA);
+        // Half-life of one update, weights 1/2
+        assertEquals(((10.0 + 12.0) / 2 + 9.0) / 2 / 2 + 11.0 / 2, record.getDouble(ewma.ewma), DELTA);
+        assertEquals(4L, record.getLong(variance.count));
+        assertEquals(10.5, record.getDouble(variance.mean), DELTA);
+        assertEquals((0.25 + 2.25 + 2.25 + 0.25) / 3, record.getDouble(variance.variance), DELTA);
+        assertEquals(10.0, record.getDouble(ohlc.open));
+        assertEquals(12.0, record.getDouble(ohlc.high));
+        assertEquals(9.0, record.getDouble(ohlc.low));
+        assertEquals(11.0, record.getDouble(ohlc.close));
+        assertEquals(3.0, record.getDouble(ohlc.range));
+        // Quantity only trade uses last price
+        record.update(quantity, 100.0);
+        record.commit();
+        assertEquals((5050.0 + 1100.0) / 600.0, record.getDouble(vwap.vwap), DELTA);
+        record.reset();
+        record.update(price, 5.0);
+        record.update(time, 2000L);
+        record.commit();
+        assertEquals(5.0, record.getDouble(twap.twap));
+        assertEquals(0.0, record.getDouble(variance.variance));
+        assertEquals(0.0, record.getDouble(ohlc.range));
+        assertThrows(AcmException.class, () -> new AcmFinance.Ewma(new AcmRecord(), 0, 0.0));
+    }
+}
@@ -0,0 +1,113 @@
+package com.threadcat.acm;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AcmJournalTest {
+
+    @Test
+    void testTableReplication() {
+        AcmTable source = table();
+        AcmTable standby = table();
+        source.setByteBuffer(ByteBuffer.allocate(source.size(8)));
+        standby.setByteBuffer(ByteBuffer.allocate(standby.size(8)));
+        AcmJournal journal = new AcmJournal(ByteBuffer.allocate(1 << 20), source.columnCount());
+        source.setJournal(journal);
+        AcmRowCursor cursor = source.cursor(5);
+        Random random = new Random(11);
+        long position = AcmJournal.DATA;
+        for (int i = 0; i < 2000; i++) {
+            switch (random.nextInt(10)) {
+                case 0:
+                    source.setCursor(random.nextInt(8));
+                    break;
+                case 1:
+                    source.reset(random.nextInt(8));
+                    break;
+                case 2:
+                    cursor.update(1, random.nextDouble());
+                    cursor.commit();
+                    break;
+                default:
+                    source.update(1, random.nextDouble());
+                    if (random.nextBoolean()) {
+                        source.update(4, (long) random.nextInt(100));
+                    }
+                    source.commit();
+            }
+            if (i % 100 == 0) {
+                position = journal.replay(standby, position);
+            }
+        }
+        // Uncommitted values are not replicated
+        source.update(1, 100.0);
+        position = journal.replay(standby, position);
+        assertEquals(journal.end(AcmJournal.DATA), position);
+        assertEquals(source.getCursor(), standby.getCursor());
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < source.columnCount(); col++) {
+                assertEquals(source.isEmpty(row, col), standby.isEmpty(row, col));
+                assertEquals(source.getLong(row, col), standby.getLong(row, col));
+            }
+        }
+        // Standby takes over
+        source.discard();
+        source.update(1, 1.0);
+        source.commit();
+        standby.update(1, 1.0);
+        standby.commit();
+        assertEquals(source.getDouble(2), standby.getDouble(2));
+    }
+
+    @Test
+    void testRecordRebuild() {
+        AcmRecord record = new AcmRecord();
+        record.addRevisionColumn();
+        int last = record.addColumn(AcmLong.LAST);
+        int sum = record.addColumn(AcmLong.SUM, last);
+        record.setByteBuffer(ByteBuffer.allocate(record.size()));
+        for (int i = 0; i < 10; i++) {
+            record.update(last, i);
+            record.commit();
+        }
+        // Checkpoint
+        ByteBuffer checkpoint = ByteBuffer.allocate(record.size());
+        checkpoint.put(record.buffer.duplicate().clear());
+        AcmJournal journal = new AcmJournal(ByteBuffer.allocate(200), record.columnCount());
+        record.setJournal(journal);
+        for (int i = 10; i < 13; i++) {
+            record.update(last, i);
+            record.commit();
+        }
+        assertThrows(AcmException.class, () -> {
+            record.update(last, 0L);
+            record.commit();
+        });
+        AcmRecord rebuilt = new AcmRecord();
+        rebuilt.addRevisionColumn();
+        rebuilt.addColumn(AcmLong.LAST);
+        rebuilt.addColumn(AcmLong.SUM, last);
+        rebuilt.setByteBuffer(checkpoint);
+        // Journal reopened after restart
+        AcmJournal reopened = new AcmJournal(journal.buffer(), rebuilt.columnCount());
+        reopened.replay(rebuilt, AcmJournal.DATA);
+        assertEquals(record.getLong(0), rebuilt.getLong(0));
+        assertEquals(78L, rebuilt.getLong(sum));
+        assertThrows(AcmException.class, () -> new AcmJournal(journal.buffer(), 2));
+    }
+
+    private static AcmTable table() {
+        AcmTable table = new AcmTable();
+        table.addRevisionColumn();
+        int price = table.addColumn(AcmDouble.LAST);
+        table.addColumn(AcmDouble.SUM, price);
+        table.addColumn(AcmDouble.MAX, price);
+        table.addColumn(AcmLong.SUM);
+        return table;
+    }
+}
@@ -0,0 +1,157 @@
+package com.threadcat.acm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AcmReaderTest {
+
+    @Test
+    void testConcurrentSnapshot() throws InterruptedException {
+        AcmRecord record = new AcmRecord();
+        int revision = record.addRevisionColumn();
+        int a = record.addColumn(AcmLong.LAST);
+        int b = record.addColumn(AcmLong.LAST);
+        record.setByteBuffer(ByteBuffer.allocateDirect(record.size()));
+        AcmReader reader = record.reader(a, b, revision);
+        int updates = 200_000;
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i <= updates; i++) {
+                record.update(a, i);
+                record.update(b, -i);
+                record.commit();
+            }
+        });
+        writer.start();
+        long last = 0;
+        while (last < updates + 1) {
+            long fetched = reader.fetch();
+            assertEquals(0L, reader.getLong(a) + reader.getLong(b));
+            assertEquals(fetched, reader.getLong(revision));
+            assertEquals(fetched - 1, reader.getLong(a));
+            last = fetched;
+        }
+        writer.join();
+    }
+
+    @Test
+    void testWideConcurrentSnapshot() throws InterruptedException {
+        AcmRecord record = new AcmRecord();
+        int revision = record.addRevisionColumn();
+        int a = record.addColumn(AcmLong.LAST);
+        for (int i = 0; i < 64; i++) {
+            record.addColumn(AcmLong.LAST);
+        }
+        int b = record.addColumn(AcmLong.LAST);
+        for (int i = 0; i < 64; i++) {
+            record.addColumn(AcmLong.LAST);
+        }
+        int c = record.addColumn(AcmLong.LAST);
+        record.setByteBuffer(ByteBuffer.allocateDirect(record.size()));
+        AcmReader reader = record.reader(a, b, c, revision);
+        int updates = 200_000;
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i <= updates; i++) {
+                // Columns of different header words are committed at different rates
+                record.update(a, i);
+                if (i % 2 == 0) {
+                    record.update(b, i);
+                }
+                if (i % 3 == 0) {
+                    record.update(c, i);
+                }
+                record.commit();
+            }
+        });
+        writer.start();
+        long last = 0;
+        while (last < updates + 1) {
+            long fetched = reader.fetch();
+            long i = fetched - 1;
+            assertEquals(i, reader.getLong(a));
+            assertEquals(i - i % 2, reader.getLong(b));
+            assertEquals(i - i % 3, reader.getLong(c));
+            last = fetched;
+        }
+        writer.join();
+    }
+
+    @Test
+    void testTableRows() {
+        AcmTable table = new AcmTable();
+        table.addRevisionColumn();
+        int price = table.addColumn(AcmDouble.LAST);
+        table.setByteBuffer(ByteBuffer.allocate(table.size(3)));
+        for (int row = 0; row < 3; row++) {
+            table.setCursor(row);
+            table.update(price, row * 1.5);
+            table.commit();
+        }
+        AcmReader reader = table.reader(price);
+        assertEquals(1L, reader.fetch(1));
+        assertEquals(1.5, reader.getDouble(price));
+        reader.fetch(2);
+        assertEquals(3.0, reader.getDouble(price));
+        assertThrows(AcmException.class, () -> reader.getLong(0));
+    }
+
+    @Test
+    void testRevisionRequired() {
+        AcmRecord record = new AcmRecord();
+        int col = record.addColumn(AcmLong.LAST);
+        record.setByteBuffer(ByteBuffer.allocate(record.size()));
+        assertThrows(AcmException.class, () -> record.reader(col));
+    }
+
+    @Test
+    void testReadOnlyMapping(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("table.acm");
+        try (FileChannel writeChannel = FileChannel.open(file, CREATE, READ, WRITE);
+             FileChannel readChannel = FileChannel.open(file, READ)) {
+            AcmTable writer = new AcmTable();
+            writer.addRevisionColumn();
+            int sum = writer.addColumn(AcmLong.SUM);
+            writer.map(writeChannel, 4);
+            writer.update(sum, 5L);
+            writer.commit();
+
+            AcmTable table = new AcmTable();
+            table.addRevisionColumn();
+            table.addColumn(AcmLong.SUM);
+            table.mapReadOnly(readChannel);
+            AcmReader reader = table.reader(sum);
+            long revision = reader.fetch(0);
+            assertEquals(5L, reader.getLong(sum));
+            assertEquals(5L, table.getLong(sum));
+
+            writer.update(sum, 6L);
+            assertEquals(revision, reader.revision(0));
+            writer.commit();
+            assertEquals(revision + 1, reader.revision(0));
+            reader.fetch(0);
+            assertEquals(11L, reader.getLong(sum));
+            table.refresh();
+            assertEquals(11L, table.getLong(sum));
+            assertThrows(ReadOnlyBufferException.class, table::commit);
+        }
+    }
+
+    @Test
+    void testReadOnlyUninitialised() {
+        AcmRecord record = new AcmRecord();
+        record.addColumn(AcmLong.LAST);
+        ByteBuffer buffer = ByteBuffer.allocate(record.size()).asReadOnlyBuffer();
+        assertThrows(AcmException.class, () -> record.setByteBuffer(buffer));
+    }
+}
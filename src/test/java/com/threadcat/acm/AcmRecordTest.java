@@ -4,9 +4,13 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
 import java.util.function.BiConsumer;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 class AcmRecordTest {
     private static final double DELTA = 0.001;
@@ -97,6 +101,183 @@ class AcmRecordTest {
         verifyMultiUpdate(record2, columns2);
     }
 
+    @Test
+    void testUpdateBatch() {
+        int[] cols = {columns.priceLast};
+        double[] prices = {0.0, 1.234, 1.235, 1.232, 1.233};
+        record.updateBatch(cols, prices, 1, 3);
+        record.updateBatch(cols, DoubleBuffer.wrap(prices, 4, 1));
+        verifyMultiUpdate(record, columns);
+        assertThrows(AcmException.class, () -> record.updateBatch(cols, prices, 2, 4));
+        assertThrows(AcmException.class, () -> record.updateBatch(new int[0], DoubleBuffer.wrap(prices)));
+        int[] pair = {columns.priceLast, columns.priceLast};
+        assertThrows(AcmException.class, () -> record.updateBatch(pair, DoubleBuffer.wrap(prices, 0, 3)));
+        assertThrows(AcmException.class, () -> record.updateBatch(pair, LongBuffer.wrap(new long[3])));
+    }
+
+    @Test
+    void testAlternateWriters() {
+        AcmRecord[] writers = alternateWriters(false);
+        for (int i = 1; i <= 100; i++) {
+            AcmRecord writer = writers[i % 2];
+            writer.update(0, (long) i);
+            if (i % 2 == 1) {
+                writer.update(2, (long) i);
+            }
+            writer.commit();
+            assertEquals(i * (i + 1L) / 2, writers[(i + 1) % 2].getLong(1));
+        }
+        for (AcmRecord writer : writers) {
+            assertEquals(100L, writer.getLong(0));
+            assertEquals(5050L, writer.getLong(1));
+            assertEquals(99L, writer.getLong(2));
+        }
+    }
+
+    @Test
+    void testWriteCombining() {
+        AcmRecord combining = new AcmRecord();
+        TestColumns combiningColumns = new TestColumns(combining);
+        combining.setByteBuffer(ByteBuffer.allocate(combining.size()));
+        combining.setWriteCombining(true);
+        generateMultiUpdate(combining, combiningColumns);
+        verifyMultiUpdate(combining, combiningColumns);
+        // Commits of another handle are seen after refresh only
+        AcmRecord[] writers = alternateWriters(true);
+        writers[0].update(0, 5L);
+        writers[0].commit();
+        assertEquals(0L, writers[1].getLong(1));
+        writers[1].refresh();
+        assertEquals(5L, writers[1].getLong(1));
+    }
+
+    private static AcmRecord[] alternateWriters(boolean writeCombining) {
+        AcmRecord[] writers = {new AcmRecord(), new AcmRecord()};
+        ByteBuffer buffer = null;
+        for (AcmRecord writer : writers) {
+            int last = writer.addColumn(AcmLong.LAST);
+            writer.addColumn(AcmLong.SUM, last);
+            writer.addColumn(AcmLong.LAST);
+            buffer = buffer == null ? ByteBuffer.allocateDirect(writer.size()) : buffer;
+            writer.setByteBuffer(buffer);
+            writer.setWriteCombining(writeCombining);
+        }
+        return writers;
+    }
+
+    @Test
+    void testCompiled() {
+        AcmRecord compiled = new AcmRecord();
+        TestColumns compiledColumns = new TestColumns(compiled);
+        compiled.compile();
+        compiled.setByteBuffer(ByteBuffer.allocate(compiled.size()));
+        generateMultiUpdate(compiled, compiledColumns);
+        verifyMultiUpdate(compiled, compiledColumns);
+    }
+
+    @Test
+    void testFusedKernels() {
+        AcmRecord plain = new AcmRecord();
+        AcmRecord fused = new AcmRecord();
+        for (AcmRecord record : new AcmRecord[]{plain, fused}) {
+            // Padding moves the second group across header word boundary
+            for (int i = 0; i < 60; i++) {
+                record.addColumn(AcmLong.LAST);
+            }
+            int price = record.addColumn(AcmDouble.LAST);
+            record.addColumn(AcmDouble.FIRST, price);
+            record.addColumn(AcmDouble.SUM, price);
+            record.addColumn(AcmDouble.COUNT, price);
+            record.addColumn(AcmDouble.MIN, price);
+            record.addColumn(AcmDouble.MAX, price);
+            record.addColumn(AcmDouble.LAST, price);
+            int size = record.addColumn(AcmLong.LAST);
+            record.addColumn(AcmLong.SUM, size);
+            record.addColumn(AcmLong.COUNT, size);
+            record.addColumn(AcmLong.MIN, size);
+            record.addColumn(AcmLong.MAX, size);
+            record.addColumn(AcmLong.FIRST, size);
+        }
+        fused.compile();
+        plain.setByteBuffer(ByteBuffer.allocate(plain.size()));
+        fused.setByteBuffer(ByteBuffer.allocate(fused.size()));
+        for (int i = 0; i < 1000; i++) {
+            for (AcmRecord record : new AcmRecord[]{plain, fused}) {
+                if (i % 100 == 99) {
+                    record.reset();
+                    continue;
+                }
+                record.update(60, (i * 37 % 101) / 10.0);
+                if (i % 3 != 0) {
+                    record.update(67, (long) (i * 53 % 97));
+                }
+                record.commit();
+            }
+            for (int col = 60; col < plain.columnCount(); col++) {
+                assertEquals(plain.getLong(col), fused.getLong(col));
+                assertEquals(plain.isEmpty(col), fused.isEmpty(col));
+            }
+        }
+    }
+
+    @Test
+    void testLinkChain() {
+        AcmRecord chain = new AcmRecord();
+        int last = chain.addColumn(AcmDouble.LAST);
+        int sum = chain.addColumn(AcmDouble.SUM, last);
+        int count = chain.addColumn(AcmDouble.COUNT, sum);
+        int sumCount = chain.addColumn(AcmLong.SUM, count);
+        int ratio = chain.addColumn((AcmLongToDoubleAction) (view, storeColumn, referenceColumn, value) ->
+                view.getDraftDouble(sum) / value, sumCount);
+        chain.setByteBuffer(ByteBuffer.allocate(chain.size()));
+        chain.update(last, 2.0);
+        chain.commit();
+        chain.update(last, 4.0);
+        chain.commit();
+        assertEquals(6.0, chain.getDouble(sum), DELTA);
+        assertEquals(2L, chain.getLong(count));
+        assertEquals(3L, chain.getLong(sumCount));
+        assertEquals(2.0, chain.getDouble(ratio), DELTA);
+    }
+
+    @Test
+    void testWideRecord() {
+        AcmRecord wide = new AcmRecord();
+        int[] sums = new int[150];
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = wide.addColumn(AcmLong.SUM);
+        }
+        int count = wide.addColumn(AcmLong.COUNT, sums[140]);
+        ByteBuffer wideBuffer = ByteBuffer.allocate(wide.size());
+        wide.setByteBuffer(wideBuffer);
+        for (int i = 0; i < sums.length; i++) {
+            wide.update(sums[i], i);
+        }
+        wide.commit();
+        wide.update(sums[140], 10L);
+        wide.commit();
+        wide.update(sums[140], 20L);
+        //
+        AcmRecord restored = new AcmRecord();
+        for (int i = 0; i < sums.length; i++) {
+            restored.addColumn(AcmLong.SUM);
+        }
+        restored.addColumn(AcmLong.COUNT, sums[140]);
+        restored.setByteBuffer(wideBuffer);
+        assertEquals(2, wideBuffer.getInt(AcmRecord.VERSION));
+        assertEquals(63L, restored.getLong(sums[63]));
+        assertEquals(64L, restored.getLong(sums[64]));
+        assertEquals(150L, restored.getLong(sums[140]));
+        assertEquals(2L, restored.getLong(count));
+        assertFalse(restored.isEmpty(sums[149]));
+        assertFalse(restored.isEmpty(count));
+    }
+
+    @Test
+    void testFrozenSchema() {
+        assertThrows(AcmException.class, () -> record.addColumn(AcmDouble.LAST));
+    }
+
     private static void generateMultiUpdate(AcmRecord record, TestColumns columns) {
         double[] prices = {1.234, 1.235, 1.232, 1.233};
         for (double price : prices) {
@@ -0,0 +1,93 @@
+package com.threadcat.acm;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AcmRollupTest {
+    private static final AcmDoubleAction PRODUCT = (view, store, ref, value) -> view.isEmpty(store) ? value : view.getDouble(store) * value;
+
+    static class Columns {
+        final int revision;
+        final int price;
+        final int volume;
+        final int low;
+        final int high;
+        final int open;
+        final int close;
+        final int ticks;
+        final int product;
+
+        Columns(AcmHandler handler) {
+            revision = handler.addRevisionColumn();
+            price = handler.addColumn(AcmDouble.LAST);
+            volume = handler.addColumn(AcmLong.SUM);
+            low = handler.addColumn(AcmDouble.MIN, price);
+            high = handler.addColumn(AcmDouble.MAX, price);
+            open = handler.addColumn(AcmDouble.FIRST, price);
+            close = handler.addColumn(AcmDouble.LAST, price);
+            ticks = handler.addColumn(AcmLong.COUNT, volume);
+            product = handler.addColumn(PRODUCT);
+        }
+    }
+
+    @Test
+    void testRollup() {
+        int rows = 5000;
+        AcmTable table = new AcmTable();
+        Columns t = new Columns(table);
+        table.setByteBuffer(ByteBuffer.allocate(table.size(rows)));
+        long volume = 0;
+        double product = 1.0;
+        for (int row = 0; row < rows; row++) {
+            table.setCursor(row);
+            if (row % 7 == 0) {
+                continue;
+            }
+            table.update(t.price, 1000.0 + row % 101);
+            table.update(t.volume, (long) row);
+            table.update(t.product, row % 10 == 1 ? 2.0 : 1.0);
+            table.commit();
+            volume += row;
+            product *= row % 10 == 1 ? 2.0 : 1.0;
+        }
+        AcmRecord summary = new AcmRecord();
+        Columns s = new Columns(summary);
+        summary.setByteBuffer(ByteBuffer.allocate(summary.size()));
+        AcmRollup rollup = new AcmRollup(table, new ForkJoinPool(4));
+        // Custom column without merge function is skipped
+        rollup.rollup(0, rows, summary);
+        assertEquals(2L, summary.getLong(s.revision));
+        assertEquals(volume, summary.getLong(s.volume));
+        assertTrue(summary.isEmpty(s.product));
+        rollup.setDoubleMerge(t.product, (a, b) -> a * b);
+        assertThrows(AcmException.class, () -> rollup.setDoubleMerge(t.volume, (a, b) -> a * b));
+        rollup.rollup(0, rows, summary);
+        assertEquals(3L, summary.getLong(s.revision));
+        assertEquals(volume, summary.getLong(s.volume));
+        assertEquals(rows - (rows + 6) / 7, summary.getLong(s.ticks));
+        assertEquals(1000.0, summary.getDouble(s.low));
+        assertEquals(1100.0, summary.getDouble(s.high));
+        assertEquals(1001.0, summary.getDouble(s.open));
+        assertEquals(1000.0 + 4999 % 101, summary.getDouble(s.close));
+        assertEquals(product, summary.getDouble(s.product));
+        // Rows 14 to 20, row 14 is empty
+        rollup.rollup(14, 21, summary);
+        assertEquals(4L, summary.getLong(s.revision));
+        assertEquals(15L + 16 + 17 + 18 + 19 + 20, summary.getLong(s.volume));
+        assertEquals(1015.0, summary.getDouble(s.open));
+        assertEquals(1020.0, summary.getDouble(s.close));
+        // Empty range keeps values, still committed
+        rollup.rollup(7, 8, summary);
+        assertEquals(5L, summary.getLong(s.revision));
+        assertFalse(summary.isEmpty(s.volume));
+        assertEquals(1020.0, summary.getDouble(s.close));
+        assertThrows(AcmException.class, () -> rollup.rollup(0, rows + 1, summary));
+    }
+}
@@ -0,0 +1,101 @@
+package com.threadcat.acm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AcmScanTest {
+
+    @Test
+    void testReductions() {
+        AcmTable table = new AcmTable();
+        int price = table.addColumn(AcmDouble.LAST);
+        int volume = table.addColumn(AcmDouble.SUM);
+        int trades = table.addColumn(AcmLong.SUM);
+        table.setByteBuffer(ByteBuffer.allocate(table.size(11)));
+        double sum = 0.0;
+        double dot = 0.0;
+        // Rows committed different number of times, so committed halves alternate
+        for (int row = 0; row < 11; row++) {
+            table.setCursor(row);
+            if (row == 4) {
+                // Row left empty, reset row would keep committed bits that recovery counts as values
+                continue;
+            }
+            for (int i = 0; i <= row % 3; i++) {
+                table.update(price, 100.0 - row);
+                table.update(volume, 1.0);
+                table.update(trades, 1L);
+                table.commit();
+            }
+            sum += 1 + row % 3;
+            dot += (100.0 - row) * (1 + row % 3);
+        }
+        table.setCursor(10);
+        table.update(volume, 1000.0);
+        assertEquals(sum, AcmScan.sum(table, volume, 0, 11));
+        assertEquals(dot, AcmScan.dot(table, price, volume, 0, 11));
+        assertEquals(10L, AcmScan.count(table, price, 0, 11));
+        assertEquals(90.0, AcmScan.min(table, price, 0, 11));
+        assertEquals(100.0, AcmScan.max(table, price, 0, 11));
+        assertEquals(95.0, AcmScan.max(table, price, 4, 11));
+        assertEquals(Double.NaN, AcmScan.min(table, price, 4, 5));
+        assertEquals(sum, AcmScan.sumLong(table, trades, 0, 11));
+        assertEquals(1L, AcmScan.minLong(table, trades, 0, 11));
+        assertEquals(3L, AcmScan.maxLong(table, trades, 0, 11));
+        assertEquals(0L, AcmScan.sumLong(table, trades, 3, 3));
+        assertThrows(AcmException.class, () -> AcmScan.sum(table, trades, 0, 11));
+        assertThrows(AcmException.class, () -> AcmScan.sum(table, volume, 0, 12));
+        assertThrows(AcmException.class, () -> AcmScan.count(table, 3, 0, 11));
+    }
+
+    @Test
+    void testRecoveredStatus() {
+        AcmTable table = new AcmTable();
+        int price = table.addColumn(AcmDouble.LAST);
+        int trades = table.addColumn(AcmLong.SUM);
+        ByteBuffer buffer = ByteBuffer.allocate(table.size(2));
+        table.setByteBuffer(buffer);
+        // Reset on attach and two commits leave committed bits set
+        for (int i = 1; i <= 2; i++) {
+            table.update(price, 1.5 * i);
+            table.update(trades, 2L);
+            table.commit();
+        }
+        // Writer terminated after storing committed bitmask, before storing status
+        buffer.putLong(table.rowOffset(0), 0L);
+        assertEquals(1L, AcmScan.count(table, price, 0, 2));
+        assertEquals(3.0, AcmScan.sum(table, price, 0, 2));
+        assertEquals(4L, AcmScan.sumLong(table, trades, 0, 2));
+    }
+
+    @Test
+    void testSegments(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("scan.acm");
+        try (FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE)) {
+            AcmTable table = new AcmTable();
+            table.setRowLocks(true);
+            int value = table.addColumn(AcmLong.SUM);
+            table.map(channel, 100, 3, FileChannel.MapMode.READ_WRITE);
+            for (int row = 0; row < 100; row++) {
+                table.setCursor(row);
+                table.update(value, row);
+                table.commit();
+            }
+            assertEquals(4950L, AcmScan.sumLong(table, value, 0, 100));
+            assertEquals(5L + 6 + 7 + 8 + 9, AcmScan.sumLong(table, value, 5, 10));
+            assertEquals(99L, AcmScan.maxLong(table, value, 0, 100));
+            assertEquals(100L, AcmScan.count(table, value, 0, 100));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.threadcat.acm;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AcmShardedRecordTest {
+
+    @Test
+    void testProducers() throws InterruptedException {
+        AcmRecord totals = new AcmRecord();
+        int revision = totals.addRevisionColumn();
+        int volume = totals.addColumn(AcmLong.SUM);
+        int trades = totals.addColumn(AcmLong.COUNT, volume);
+        int largest = totals.addColumn(AcmLong.MAX, volume);
+        int price = totals.addColumn(AcmDouble.MIN);
+        totals.setByteBuffer(ByteBuffer.allocate(totals.size()));
+        int producers = 4;
+        int commits = 100_000;
+        AcmShardedRecord sharded = new AcmShardedRecord(totals, producers);
+        sharded.setByteBuffer(ByteBuffer.allocateDirect(sharded.size()));
+        assertTrue(sharded.isEmpty(volume));
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < producers; i++) {
+            int producer = i;
+            threads.add(new Thread(() -> {
+                AcmShardedRecord.Shard shard = sharded.shard();
+                for (int n = 1; n <= commits; n++) {
+                    shard.update(volume, n + producer);
+                    shard.commit();
+                }
+                shard.update(price, 10.0 - producer);
+                shard.commit();
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long expected = producers * (commits * (commits + 1L) / 2) + commits * (0L + 1 + 2 + 3);
+        assertEquals(expected, sharded.getLong(volume));
+        assertEquals((long) producers * commits, sharded.getLong(trades));
+        assertEquals(commits * (commits + 1L) / 2 + 3L * commits, sharded.getLong(largest));
+        assertEquals(7.0, sharded.getDouble(price));
+        assertEquals(producers * (commits + 1L), sharded.getLong(revision));
+        sharded.merge(totals);
+        assertEquals(expected, totals.getLong(volume));
+        assertEquals(2L, totals.getLong(revision));
+        assertFalse(totals.isEmpty(price));
+        assertThrows(AcmException.class, sharded::shard);
+    }
+
+    @Test
+    void testCustomMerge() {
+        AcmRecord schema = new AcmRecord();
+        int product = schema.addColumn((AcmDoubleAction) (view, store, ref, value) -> view.isEmpty(store) ? value : view.getDouble(store) * value);
+        schema.setByteBuffer(ByteBuffer.allocate(schema.size()));
+        AcmShardedRecord sharded = new AcmShardedRecord(schema, 1);
+        assertThrows(AcmException.class, sharded::shard);
+        sharded.setByteBuffer(ByteBuffer.allocate(sharded.size()));
+        AcmShardedRecord.Shard shard = sharded.shard();
+        assertEquals(0, shard.getStripe());
+        shard.update(product, 3.0);
+        shard.commit();
+        shard.update(product, 2.0);
+        shard.commit();
+        assertThrows(AcmException.class, () -> sharded.getDouble(product));
+        sharded.setDoubleMerge(product, (a, b) -> a * b);
+        assertEquals(6.0, sharded.getDouble(product));
+    }
+
+    @Test
+    void testFirstLastMerge() {
+        AcmRecord schema = new AcmRecord();
+        int price = schema.addColumn(AcmDouble.LAST);
+        int open = schema.addColumn(AcmDouble.FIRST, price);
+        schema.setByteBuffer(ByteBuffer.allocate(schema.size()));
+        AcmShardedRecord sharded = new AcmShardedRecord(schema, 1);
+        sharded.setByteBuffer(ByteBuffer.allocate(sharded.size()));
+        AcmShardedRecord.Shard shard = sharded.shard();
+        shard.update(price, 2.0);
+        shard.commit();
+        shard.update(price, 3.0);
+        shard.commit();
+        // Stripe order is the order threads claimed them, not the order of events
+        assertThrows(AcmException.class, () -> sharded.getDouble(price));
+        assertThrows(AcmException.class, () -> sharded.getDouble(open));
+        assertThrows(AcmException.class, () -> sharded.merge(schema));
+        sharded.setDoubleMerge(price, Math::max);
+        sharded.setDoubleMerge(open, Math::min);
+        assertEquals(3.0, sharded.getDouble(price));
+        assertEquals(2.0, sharded.getDouble(open));
+    }
+
+    @Test
+    void testFailedMerge() {
+        AcmRecord totals = new AcmRecord();
+        int volume = totals.addColumn(AcmLong.SUM);
+        int price = totals.addColumn(AcmDouble.LAST);
+        totals.setByteBuffer(ByteBuffer.allocate(totals.size()));
+        AcmShardedRecord sharded = new AcmShardedRecord(totals, 1);
+        sharded.setByteBuffer(ByteBuffer.allocate(sharded.size()));
+        AcmShardedRecord.Shard shard = sharded.shard();
+        shard.update(volume, 7L);
+        shard.update(price, 1.5);
+        shard.commit();
+        assertThrows(AcmException.class, () -> sharded.merge(totals));
+        // Unrelated commit of the target does not publish half merged values
+        totals.update(price, 2.5);
+        totals.commit();
+        assertTrue(totals.isEmpty(volume));
+        assertEquals(0L, totals.getLong(volume));
+    }
+}
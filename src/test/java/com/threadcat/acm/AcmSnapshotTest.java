@@ -0,0 +1,94 @@
+package com.threadcat.acm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AcmSnapshotTest {
+    static final int ROWS = 1000;
+
+    @Test
+    void testLiveSnapshot() throws InterruptedException {
+        AcmTable table = table();
+        table.setByteBuffer(ByteBuffer.allocateDirect(table.size(ROWS)));
+        AcmRowCursor[] cursors = new AcmRowCursor[ROWS];
+        for (int row = 0; row < ROWS; row++) {
+            cursors[row] = table.cursor(row);
+        }
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i <= 500_000; i++) {
+                AcmRowCursor cursor = cursors[i % ROWS];
+                cursor.update(1, i);
+                cursor.update(2, -i);
+                cursor.commit();
+            }
+        });
+        writer.start();
+        for (int n = 0; n < 5; n++) {
+            ByteBuffer copy = ByteBuffer.allocate(table.size(ROWS));
+            AcmSnapshot.copy(table, copy);
+            AcmTable snapshot = table();
+            snapshot.setByteBuffer(copy);
+            for (int row = 0; row < ROWS; row++) {
+                long a = snapshot.getLong(row, 1);
+                assertEquals(0L, a + snapshot.getLong(row, 2));
+                // Revision counts commits of the row
+                long revision = snapshot.getLong(row, 0);
+                long commits = a == 0 ? 0 : (a - row) / ROWS + (row == 0 ? 0 : 1);
+                assertEquals((row == 0 ? 1 : 0) + commits, revision);
+            }
+        }
+        writer.join();
+    }
+
+    @Test
+    void testFileSnapshot(@TempDir Path dir) throws IOException {
+        AcmTable table = table();
+        table.setRowLocks(true);
+        table.setKeyIndex(true);
+        table.setByteBuffer(ByteBuffer.allocate(table.size(10)));
+        for (int row = 0; row < 10; row++) {
+            table.setCursor(table.insertIfAbsent(100L + row));
+            table.update(1, row);
+            table.commit();
+        }
+        AcmRowWriter writer = table.writer();
+        writer.lock(3);
+        try (FileChannel channel = FileChannel.open(dir.resolve("snapshot.acm"), CREATE, READ, WRITE)) {
+            AcmSnapshot.copy(table, channel);
+            AcmTable snapshot = table();
+            snapshot.setRowLocks(true);
+            snapshot.setKeyIndex(true);
+            snapshot.map(channel, 10);
+            assertEquals(9, snapshot.getCursor());
+            for (int row = 0; row < 10; row++) {
+                assertEquals(row, snapshot.rowFor(100L + row));
+                assertEquals(row, snapshot.getLong(row, 1));
+            }
+            // Row locks are not copied
+            snapshot.writer().lock(3);
+        }
+        AcmTable plain = new AcmTable();
+        plain.addColumn(AcmLong.LAST);
+        plain.setByteBuffer(ByteBuffer.allocate(plain.size(2)));
+        assertThrows(AcmException.class, () -> AcmSnapshot.copy(plain, ByteBuffer.allocate(plain.size(2))));
+    }
+
+    private static AcmTable table() {
+        AcmTable table = new AcmTable();
+        table.addRevisionColumn();
+        table.addColumn(AcmLong.LAST);
+        table.addColumn(AcmLong.LAST);
+        return table;
+    }
+}
@@ -2,11 +2,21 @@ package com.threadcat.acm;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.util.function.BiConsumer;
 
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class AcmTableTest {
     static final double EPSILON = 1e-12;
@@ -90,4 +100,387 @@ public class AcmTableTest {
         table.reset(1);
         verify.accept(new long[]{3, 0, 7}, new double[]{0.1, 0.0, 0.3});
     }
+
+    @Test
+    void testWideTable() {
+        AcmTable wide = new AcmTable();
+        int[] cols = new int[100];
+        for (int i = 0; i < cols.length; i++) {
+            cols[i] = wide.addColumn(AcmDouble.LAST);
+        }
+        wide.setByteBuffer(ByteBuffer.allocate(wide.size(4)));
+        for (int row = 0; row < 4; row++) {
+            wide.setCursor(row);
+            for (int col : cols) {
+                wide.update(col, row + col * 0.01);
+            }
+            wide.commit();
+        }
+        wide.reset(2);
+        for (int row = 0; row < 4; row++) {
+            double expected = row == 2 ? 0.0 : row + 0.99;
+            assertEquals(expected, wide.getDouble(row, cols[99]), EPSILON);
+        }
+        assertEquals(3.7, wide.getDouble(cols[70]), EPSILON);
+    }
+
+    @Test
+    void testSegments(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("table.acm");
+        try (FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE)) {
+            AcmTable segmented = new AcmTable();
+            int col = segmented.addColumn(AcmLong.SUM);
+            segmented.map(channel, 10, 2, FileChannel.MapMode.READ_WRITE);
+            for (int row = 0; row < 10; row++) {
+                segmented.setCursor(row);
+                segmented.update(col, row);
+                segmented.commit();
+            }
+            assertEquals(segmented.fileSize(10), channel.size());
+        }
+        try (FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+            AcmTable reopened = new AcmTable();
+            int col = reopened.addColumn(AcmLong.SUM);
+            reopened.map(channel, 10, 2, FileChannel.MapMode.READ_WRITE);
+            assertEquals(9, reopened.getCursor());
+            assertEquals(9L, reopened.getLong(col));
+            reopened.reset(5);
+            for (int row = 0; row < 10; row++) {
+                assertEquals(row == 5 ? 0L : row, reopened.getLong(row, col));
+            }
+        }
+    }
+
+    @Test
+    void testMapValidation(@TempDir Path dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir.resolve("table.acm"), CREATE, READ, WRITE)) {
+            AcmTable table = new AcmTable();
+            table.addColumn(AcmLong.SUM);
+            assertThrows(AcmException.class, () -> table.map(channel, 0));
+            assertThrows(AcmException.class, () -> table.map(channel, 10, 32, FileChannel.MapMode.READ_WRITE));
+            assertEquals(0L, channel.size());
+            table.map(channel, 10);
+            long size = channel.size();
+            AcmTable other = new AcmTable();
+            other.addColumn(AcmLong.SUM);
+            assertThrows(AcmException.class, () -> other.map(channel, 20));
+            AcmTable wide = new AcmTable();
+            wide.addColumn(AcmLong.SUM);
+            wide.addColumn(AcmLong.SUM);
+            assertThrows(AcmException.class, () -> wide.map(channel, 10));
+            assertEquals(size, channel.size());
+        }
+    }
+
+    @Test
+    void testKeyIndex(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("keyed.acm");
+        String[] symbols = {"EURUSD", "GBPUSD", "USDJPY", "AUDUSD", "XAU"};
+        try (FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE)) {
+            AcmTable keyed = new AcmTable();
+            keyed.setKeyIndex(true);
+            int col = keyed.addColumn(AcmLong.SUM);
+            keyed.map(channel, symbols.length, 2, FileChannel.MapMode.READ_WRITE);
+            assertEquals(keyed.fileSize(symbols.length), channel.size());
+            for (int i = 0; i < symbols.length; i++) {
+                assertEquals(-1, keyed.rowFor(symbols[i]));
+                assertEquals(i, keyed.insertIfAbsent(symbols[i]));
+                keyed.setCursor(i);
+                keyed.update(col, 10L * i);
+                keyed.commit();
+            }
+            assertEquals(1, keyed.insertIfAbsent("GBPUSD"));
+            assertThrows(AcmException.class, () -> keyed.insertIfAbsent("NZDUSD"));
+        }
+        try (FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+            AcmTable reopened = new AcmTable();
+            reopened.setKeyIndex(true);
+            int col = reopened.addColumn(AcmLong.SUM);
+            reopened.map(channel, symbols.length, 2, FileChannel.MapMode.READ_WRITE);
+            assertEquals(symbols.length, reopened.keyCount());
+            for (int i = 0; i < symbols.length; i++) {
+                assertEquals(10L * i, reopened.getLong(reopened.rowFor(symbols[i]), col));
+            }
+        }
+        AcmTable numeric = new AcmTable();
+        numeric.setKeyIndex(true);
+        numeric.addColumn(AcmLong.SUM);
+        numeric.setByteBuffer(ByteBuffer.allocate(numeric.size(100)));
+        assertEquals(100, numeric.getRows());
+        for (long key = 0; key < 100; key++) {
+            assertEquals(key, numeric.insertIfAbsent(key * 1024));
+        }
+        for (long key = 0; key < 100; key++) {
+            assertEquals(key, numeric.rowFor(key * 1024));
+        }
+        assertEquals(-1, numeric.rowFor(-1L));
+        assertThrows(AcmException.class, () -> AcmTable.key("EURUSD.SPOT"));
+        assertThrows(AcmException.class, () -> table.rowFor(1L));
+    }
+
+    @Test
+    void testSchemaBlock(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("schema.acm");
+        AcmDoubleAction spread = (view, store, ref, value) -> value - view.getDouble(ref);
+        AcmSchema.registerDouble("SPREAD", spread);
+        try (FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE)) {
+            AcmTable created = new AcmTable();
+            created.setSchemaBlock(true);
+            created.setKeyIndex(true);
+            created.addRevisionColumn();
+            int bid = created.addColumn(AcmDouble.LAST);
+            created.addColumn(spread, bid);
+            created.map(channel, 4);
+            assertEquals(created.fileSize(4), channel.size());
+            created.setCursor(created.insertIfAbsent("EURUSD"));
+            created.update(bid, 1.5);
+            created.commit();
+            assertThrows(AcmException.class, () -> created.setSchemaBlock(false));
+        }
+        try (FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+            AcmTable reopened = new AcmTable();
+            reopened.setSchemaBlock(true);
+            reopened.setKeyIndex(true);
+            reopened.addRevisionColumn();
+            int bid = reopened.addColumn(AcmDouble.LAST);
+            reopened.addColumn(spread, bid);
+            reopened.map(channel, 4);
+            assertEquals(0, reopened.rowFor("EURUSD"));
+            assertEquals(1.5, reopened.getDouble(0, bid));
+        }
+        try (FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+            AcmTable changed = new AcmTable();
+            changed.setSchemaBlock(true);
+            changed.setKeyIndex(true);
+            changed.addRevisionColumn();
+            int bid = changed.addColumn(AcmDouble.MAX);
+            changed.addColumn(spread, bid);
+            assertThrows(AcmException.class, () -> changed.map(channel, 4));
+        }
+        try (FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+            AcmTable plain = new AcmTable();
+            plain.setKeyIndex(true);
+            plain.addRevisionColumn();
+            int bid = plain.addColumn(AcmDouble.LAST);
+            plain.addColumn(spread, bid);
+            assertThrows(AcmException.class, () -> plain.map(channel, 4));
+        }
+    }
+
+    @Test
+    void testRowCursors() {
+        AcmTable quotes = new AcmTable();
+        int last = quotes.addColumn(AcmDouble.LAST);
+        int sum = quotes.addColumn(AcmDouble.SUM, last);
+        int count = quotes.addColumn(AcmDouble.COUNT, last);
+        quotes.setByteBuffer(ByteBuffer.allocate(quotes.size(3)));
+        AcmRowCursor[] cursors = {quotes.cursor(0), quotes.cursor(1), quotes.cursor(2)};
+        double[] sums = new double[3];
+        for (int i = 0; i < 30; i++) {
+            int row = i * 7 % 3;
+            cursors[row].update(last, i * 0.5);
+            cursors[row].commit();
+            sums[row] += i * 0.5;
+        }
+        cursors[1].update(last, 100.0);
+        assertEquals(0, quotes.getCursor());
+        for (int row = 0; row < 3; row++) {
+            assertEquals(sums[row], quotes.getDouble(row, sum), EPSILON);
+            assertEquals(10L, quotes.getLong(row, count));
+            assertEquals(sums[row], cursors[row].getDouble(sum), EPSILON);
+        }
+        assertThrows(AcmException.class, () -> quotes.cursor(3));
+    }
+
+    @Test
+    void testSizeOverflow() {
+        assertThrows(AcmException.class, () -> table.size(Integer.MAX_VALUE / 8));
+        assertEquals(AcmTable.DATA + (Integer.MAX_VALUE / 8) * 48L, table.fileSize(Integer.MAX_VALUE / 8));
+    }
+
+    @Test
+    void testRowWriters() throws InterruptedException {
+        AcmTable shared = new AcmTable();
+        int sum = shared.addColumn(AcmLong.SUM);
+        int count = shared.addColumn(AcmLong.COUNT, sum);
+        shared.setRowLocks(true);
+        shared.setByteBuffer(ByteBuffer.allocateDirect(shared.size(8)));
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            AcmRowWriter writer = shared.writer();
+            int first = t * 2;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    writer.lock(first + i % 2);
+                    writer.update(sum, 3L);
+                    writer.commit();
+                    writer.unlock();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int row = 0; row < 8; row++) {
+            assertEquals(15_000L, shared.getLong(row, sum));
+            assertEquals(5_000L, shared.getLong(row, count));
+        }
+        assertEquals(AcmTable.ROW_LOCKS | 1, shared.version());
+    }
+
+    @Test
+    void testRowLock() {
+        AcmTable shared = new AcmTable();
+        int last = shared.addColumn(AcmLong.LAST);
+        shared.setRowLocks(true);
+        shared.setByteBuffer(ByteBuffer.allocate(shared.size(2)));
+        AcmRowWriter writerA = shared.writer();
+        AcmRowWriter writerB = shared.writer();
+        assertTrue(writerA.tryLock(1));
+        assertFalse(writerB.tryLock(1));
+        writerA.update(last, 7L);
+        writerA.unlock();
+        assertTrue(writerB.tryLock(1));
+        assertEquals(0L, writerB.getLong(last));
+        writerB.update(last, 8L);
+        writerB.commit();
+        writerB.unlock();
+        assertEquals(8L, shared.getLong(1, last));
+        assertThrows(AcmException.class, () -> table.writer());
+    }
+
+    @Test
+    void testContendedRow() throws InterruptedException {
+        AcmTable shared = new AcmTable();
+        int sum = shared.addColumn(AcmLong.SUM);
+        int count = shared.addColumn(AcmLong.COUNT, sum);
+        shared.setRowLocks(true);
+        shared.setByteBuffer(ByteBuffer.allocateDirect(shared.size(2)));
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            AcmRowWriter writer = shared.writer();
+            long value = t + 1;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    writer.lock(1);
+                    writer.update(sum, value);
+                    writer.commit();
+                    writer.unlock();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(10_000L * (1 + 2 + 3 + 4), shared.getLong(1, sum));
+        assertEquals(40_000L, shared.getLong(1, count));
+    }
+
+    @Test
+    void testDeadLockOwner(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("locked.acm");
+        long self = AcmTable.lockOwner(ProcessHandle.current());
+        try (FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE)) {
+            AcmTable crashed = new AcmTable();
+            int last = crashed.addColumn(AcmLong.LAST);
+            crashed.setRowLocks(true);
+            crashed.map(channel, 4);
+            AcmRowWriter writer = crashed.writer();
+            assertTrue(writer.tryLock(3));
+            // Row 0 held by process which does not exist any more, row 1 by earlier process with reused PID
+            long deadPid = Integer.MAX_VALUE;
+            crashed.segment(0).putLong(crashed.rowOffset(0) - 8, deadPid << 32 | self & 0xFFFFFFFFL);
+            crashed.segment(1).putLong(crashed.rowOffset(1) - 8, self ^ 0x5555L);
+            // Row 2 held by process of another PID namespace
+            crashed.segment(2).putLong(crashed.rowOffset(2) - 8, deadPid << 32 | (self ^ 0x10000L) & 0xFFFFFFFFL);
+            writer.update(last, 9L);
+        }
+        try (FileChannel channel = FileChannel.open(file, READ, WRITE)) {
+            AcmTable reopened = new AcmTable();
+            int last = reopened.addColumn(AcmLong.LAST);
+            reopened.setRowLocks(true);
+            reopened.map(channel, 4);
+            AcmRowWriter writer = reopened.writer();
+            assertTrue(writer.tryLock(1));
+            assertTrue(reopened.isEmpty(1, last));
+            writer.unlock();
+            assertTrue(writer.tryLock(0));
+            writer.unlock();
+            assertFalse(writer.tryLock(2));
+            assertFalse(writer.tryLock(3));
+        }
+    }
+
+    @Test
+    void testRowLockWithCursor() {
+        AcmTable shared = new AcmTable();
+        int last = shared.addColumn(AcmLong.LAST);
+        shared.setRowLocks(true);
+        shared.setByteBuffer(ByteBuffer.allocate(shared.size(2)));
+        shared.update(last, 5L);
+        shared.commit();
+        assertEquals(5L, shared.getLong(0, last));
+        AcmRowWriter writer = shared.writer();
+        assertTrue(writer.tryLock(0));
+        assertEquals(5L, writer.getLong(last));
+        writer.unlock();
+        assertTrue(writer.tryLock(0));
+        writer.unlock();
+    }
+
+    @Test
+    void testBars() {
+        AcmTable bars = new AcmTable();
+        int bucket = bars.addBucketColumn(60);
+        int close = bars.addColumn(AcmDouble.LAST);
+        int open = bars.addColumn(AcmDouble.FIRST, close);
+        int high = bars.addColumn(AcmDouble.MAX, close);
+        int ticks = bars.addColumn(AcmDouble.COUNT, close);
+        bars.setByteBuffer(ByteBuffer.allocate(bars.size(3)));
+        long[] times = {125, 130, 179, 180, 200, 250, 301, 420};
+        double[] prices = {1.0, 3.0, 2.0, 4.0, 5.0, 6.0, 7.0, 8.0};
+        for (int i = 0; i < times.length; i++) {
+            bars.update(times[i], close, prices[i]);
+            bars.commit();
+            if (i == 2) {
+                assertEquals(0, bars.getCursor());
+                assertEquals(120L, bars.getLong(bucket));
+                assertEquals(3.0, bars.getDouble(high), EPSILON);
+                assertEquals(3L, bars.getLong(ticks));
+            }
+        }
+        // Buckets 120, 180, 240, 300, 420 in ring of 3 rows
+        assertEquals(1, bars.getCursor());
+        assertEquals(420L, bars.getLong(1, bucket));
+        assertEquals(1L, bars.getLong(1, ticks));
+        assertEquals(300L, bars.getLong(0, bucket));
+        assertEquals(7.0, bars.getDouble(0, open), EPSILON);
+        // Row after cursor is reset ahead of time
+        assertEquals(0L, bars.getLong(2, bucket));
+        assertEquals(0L, bars.getLong(2, ticks));
+        assertThrows(AcmException.class, () -> table.update(0L, colD, 1.0));
+    }
+
+    @Test
+    void testBarsBoundaryWithDraft() {
+        AcmTable bars = new AcmTable();
+        bars.addBucketColumn(10);
+        int last = bars.addColumn(AcmLong.LAST);
+        bars.setByteBuffer(ByteBuffer.allocate(bars.size(3)));
+        bars.update(1L, last, 1L);
+        assertThrows(AcmException.class, () -> bars.update(11L, last, 2L));
+    }
+
+    @Test
+    void testBarsMinimumRows() {
+        AcmTable bars = new AcmTable();
+        bars.addBucketColumn(10);
+        bars.addColumn(AcmLong.LAST);
+        assertThrows(AcmException.class, () -> bars.setByteBuffer(ByteBuffer.allocate(bars.size(1))));
+        assertThrows(AcmException.class, () -> bars.setByteBuffer(ByteBuffer.allocate(bars.size(2))));
+        bars.setByteBuffer(ByteBuffer.allocate(bars.size(3)));
+        assertEquals(3, bars.getRows());
+    }
 }
@@ -0,0 +1,204 @@
+package com.threadcat.acm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AcmToolTest {
+
+    @Test
+    void testParseMapping() {
+        assertEquals(List.of(0, 1, 2, 3, 6, -1, 5), AcmTool.parseMapping("0-3,6,N,5"));
+    }
+
+    @Test
+    void testParseRange() {
+        assertArrayEquals(new int[]{2, 7}, AcmTool.parseRange("2-7"));
+        assertArrayEquals(new int[]{5, 5}, AcmTool.parseRange("5"));
+        assertThrows(AcmException.class, () -> AcmTool.parseRange("1,3"));
+        assertThrows(AcmException.class, () -> AcmTool.parseRange("1-2-3"));
+        assertThrows(AcmException.class, () -> AcmTool.parseRange("-1"));
+    }
+
+    @Test
+    void testMigrateTable(@TempDir Path dir) throws IOException {
+        Path source = dir.resolve("source.acm");
+        Path target = dir.resolve("target.acm");
+        int rows = 50;
+        try (FileChannel channel = FileChannel.open(source, CREATE, READ, WRITE)) {
+            AcmTable table = new AcmTable();
+            table.setKeyIndex(true);
+            int last = table.addColumn(AcmLong.LAST);
+            table.addColumn(AcmLong.SUM, last);
+            table.addColumn(AcmLong.MAX, last);
+            table.addColumn(AcmLong.COUNT, last);
+            table.map(channel, rows);
+            for (int row = 0; row < rows; row++) {
+                table.setCursor(table.insertIfAbsent(1000L + row));
+                // Odd rows committed twice, so committed halves differ between rows
+                for (int i = 0; i <= row % 2; i++) {
+                    table.update(last, row + i);
+                    table.commit();
+                }
+            }
+            table.update(last, -1L);
+        }
+        AcmTool.migrate(source, target, AcmTool.parseMapping("3,N,0-1"));
+        try (FileChannel channel = FileChannel.open(target, READ, WRITE)) {
+            AcmTable table = new AcmTable();
+            table.setKeyIndex(true);
+            int count = table.addColumn(AcmLong.LAST);
+            int extra = table.addColumn(AcmLong.LAST);
+            int last = table.addColumn(AcmLong.LAST);
+            int sum = table.addColumn(AcmLong.SUM, last);
+            assertEquals(table.fileSize(rows), channel.size());
+            table.map(channel, rows);
+            assertEquals(rows - 1, table.getCursor());
+            for (int row = 0; row < rows; row++) {
+                assertEquals(row, table.rowFor(1000L + row));
+                assertEquals(1L + row % 2, table.getLong(row, count));
+                assertTrue(table.isEmpty(row, extra));
+                assertEquals(0L, table.getLong(row, extra));
+                assertEquals(row + row % 2, table.getLong(row, last));
+                assertEquals(row * (1 + row % 2) + row % 2, table.getLong(row, sum));
+            }
+            // Uncommitted value of the cursor row is not migrated, table keeps accumulating
+            table.update(last, 7L);
+            table.commit();
+            assertEquals(2L * (rows - 1) + 1 + 7, table.getLong(sum));
+            assertFalse(table.isEmpty(last));
+        }
+        assertThrows(AcmException.class, () -> AcmTool.migrate(source, dir.resolve("bad.acm"), List.of(4)));
+    }
+
+    @Test
+    void testMigrateSchema(@TempDir Path dir) throws IOException {
+        Path source = dir.resolve("source.acm");
+        Path target = dir.resolve("target.acm");
+        try (FileChannel channel = FileChannel.open(source, CREATE, READ, WRITE)) {
+            AcmTable table = new AcmTable();
+            table.setSchemaBlock(true);
+            table.addRevisionColumn();
+            int last = table.addColumn(AcmLong.LAST);
+            table.addColumn(AcmLong.SUM, last);
+            table.map(channel, 10);
+            table.update(last, 5L);
+            table.commit();
+        }
+        AcmTool.Layout layout;
+        try (FileChannel channel = FileChannel.open(source, READ)) {
+            layout = AcmTool.Layout.of(channel);
+        }
+        assertEquals(3, layout.columns);
+        assertEquals(AcmSchema.size(3), layout.schema);
+        AcmTool.migrate(source, target, AcmTool.parseMapping("1-2,N,0"));
+        try (FileChannel channel = FileChannel.open(target, READ, WRITE)) {
+            AcmTable table = new AcmTable();
+            table.setSchemaBlock(true);
+            int last = table.addColumn(AcmLong.LAST);
+            int sum = table.addColumn(AcmLong.SUM, last);
+            int extra = table.addColumn(AcmLong.MIN, sum);
+            table.addRevisionColumn();
+            table.map(channel, 10);
+            assertEquals(5L, table.getLong(sum));
+            assertEquals(2L, table.getLong(3));
+            table.update(extra, 1L);
+            table.commit();
+        }
+        try (FileChannel channel = FileChannel.open(target, READ, WRITE)) {
+            AcmTable table = new AcmTable();
+            table.setSchemaBlock(true);
+            int last = table.addColumn(AcmLong.LAST);
+            int sum = table.addColumn(AcmLong.SUM, last);
+            table.addColumn(AcmLong.MAX, sum);
+            table.addRevisionColumn();
+            // New column entry was filled in by the first open
+            assertThrows(AcmException.class, () -> table.map(channel, 10));
+        }
+    }
+
+    @Test
+    void testMigrateWideRecord(@TempDir Path dir) throws IOException {
+        Path source = dir.resolve("source.acm");
+        Path target = dir.resolve("target.acm");
+        AcmRecord record = new AcmRecord();
+        for (int i = 0; i < 70; i++) {
+            record.addColumn(AcmLong.SUM);
+        }
+        try (FileChannel channel = FileChannel.open(source, CREATE, READ, WRITE)) {
+            record.setByteBuffer(channel.map(FileChannel.MapMode.READ_WRITE, 0, record.size()));
+            for (int i = 0; i < 70; i++) {
+                record.update(i, i);
+            }
+            record.commit();
+            record.update(69, 100L);
+            record.commit();
+        }
+        AcmTool.migrate(source, target, AcmTool.parseMapping("64-69,0"));
+        AcmRecord narrow = new AcmRecord();
+        for (int i = 0; i < 7; i++) {
+            narrow.addColumn(AcmLong.SUM);
+        }
+        try (FileChannel channel = FileChannel.open(target, READ, WRITE)) {
+            assertEquals(narrow.size(), channel.size());
+            narrow.setByteBuffer(channel.map(FileChannel.MapMode.READ_WRITE, 0, narrow.size()));
+            for (int i = 0; i < 5; i++) {
+                assertEquals(64L + i, narrow.getLong(i));
+            }
+            assertEquals(169L, narrow.getLong(5));
+            assertEquals(0L, narrow.getLong(6));
+            assertFalse(narrow.isEmpty(6));
+        }
+    }
+
+    @Test
+    void testExport(@TempDir Path dir) throws IOException {
+        Path source = dir.resolve("source.acm");
+        try (FileChannel channel = FileChannel.open(source, CREATE, READ, WRITE)) {
+            AcmTable table = new AcmTable();
+            int count = table.addColumn(AcmLong.SUM);
+            int price = table.addColumn(AcmDouble.LAST);
+            table.addColumn(AcmDouble.MAX, price);
+            table.map(channel, 4);
+            for (int row = 0; row < 3; row++) {
+                table.setCursor(row);
+                table.update(count, row + 1L);
+                if (row != 1) {
+                    table.update(price, row * 0.5);
+                }
+                table.commit();
+            }
+            table.update(count, 100L);
+        }
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        AcmTool.export(source, Channels.newChannel(csv), false, new int[]{1, 3}, new int[]{0, 2}, "LD");
+        assertEquals("row,c0,c2\n1,2,\n2,3,1.0\n3,,\n", csv.toString());
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        AcmTool.export(source, Channels.newChannel(binary), true, null, new int[]{1, 0}, null);
+        ByteBuffer values = ByteBuffer.wrap(binary.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(4 * 2 * 8, values.capacity());
+        assertEquals(0.0, values.getDouble(0));
+        assertEquals(1L, values.getLong(8));
+        assertEquals(1.0, values.getDouble(32));
+        assertEquals(3L, values.getLong(40));
+        assertThrows(AcmException.class, () -> AcmTool.export(source, Channels.newChannel(csv), false, null, new int[]{3}, null));
+        assertThrows(AcmException.class, () -> AcmTool.export(source, Channels.newChannel(csv), false, new int[]{3, 1}, null, null));
+    }
+}
@@ -0,0 +1,115 @@
+package com.threadcat.acm;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AcmWindowTest {
+    static final double EPSILON = 1e-9;
+
+    @Test
+    void testSlidingBars() {
+        AcmTable bars = new AcmTable();
+        bars.addBucketColumn(10);
+        int close = bars.addColumn(AcmDouble.LAST);
+        bars.setByteBuffer(ByteBuffer.allocate(bars.size(8)));
+        int length = 5;
+        AcmWindow window = new AcmWindow(bars, close, length);
+        assertEquals(0L, window.count());
+        assertTrue(Double.isNaN(window.min()));
+        Random random = new Random(7);
+        long time = 0;
+        for (int i = 0; i < 500; i++) {
+            // Gaps of several buckets leave empty rows behind
+            time += random.nextInt(4) == 0 ? 10 * random.nextInt(4) : 3;
+            bars.update(time, close, random.nextInt(100) - 50.0);
+            bars.commit();
+            verify(bars, close, length, window);
+        }
+    }
+
+    @Test
+    void testRebuild() {
+        AcmTable table = new AcmTable();
+        int col = table.addColumn(AcmDouble.LAST);
+        table.setByteBuffer(ByteBuffer.allocate(table.size(10)));
+        for (int row = 0; row < 10; row++) {
+            table.setCursor(row);
+            table.update(col, row * 1.0);
+            table.commit();
+        }
+        table.setCursor(5);
+        AcmWindow window = new AcmWindow(table, col, 3);
+        assertEquals(12.0, window.sum(), EPSILON);
+        table.setCursor(6);
+        assertEquals(15.0, window.sum(), EPSILON);
+        assertEquals(4.0, window.min(), EPSILON);
+        // Jump further than window length
+        table.setCursor(1);
+        assertEquals(9.0 + 0.0 + 1.0, window.sum(), EPSILON);
+        assertEquals(9.0, window.max(), EPSILON);
+        assertEquals(3L, window.count());
+        assertThrows(AcmException.class, () -> new AcmWindow(table, col, 10));
+    }
+
+    @Test
+    void testFullLap() {
+        AcmTable table = new AcmTable();
+        int col = table.addColumn(AcmDouble.LAST);
+        table.setByteBuffer(ByteBuffer.allocate(table.size(10)));
+        AcmWindow window = new AcmWindow(table, col, 3);
+        for (int row = 0; row < 10; row++) {
+            table.setCursor(row);
+            table.update(col, row * 1.0);
+            table.commit();
+            verify(table, col, 3, window);
+        }
+        // Cursor ends one row ahead after full lap, rows behind it hold new values
+        for (int i = 0; i <= 10; i++) {
+            table.setCursor(i % 10);
+            table.update(col, 100.0 + i);
+            table.commit();
+        }
+        verify(table, col, 3, window);
+        assertEquals(110.0 + 109.0 + 108.0, window.sum(), EPSILON);
+    }
+
+    @Test
+    void testLongColumn() {
+        AcmTable table = new AcmTable();
+        int volume = table.addColumn(AcmLong.SUM);
+        int ticks = table.addColumn(AcmDouble.COUNT, table.addColumn(AcmDouble.LAST));
+        table.setByteBuffer(ByteBuffer.allocate(table.size(10)));
+        assertThrows(AcmException.class, () -> new AcmWindow(table, volume, 3));
+        assertThrows(AcmException.class, () -> new AcmWindow(table, ticks, 3));
+        assertThrows(AcmException.class, () -> new AcmWindow(table, 5, 3));
+    }
+
+    private static void verify(AcmTable table, int col, int length, AcmWindow window) {
+        double sum = 0.0;
+        long count = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < length; i++) {
+            int row = Math.floorMod(table.getCursor() - i, table.getRows());
+            if (!table.isEmpty(row, col)) {
+                double value = table.getDouble(row, col);
+                sum += value;
+                count++;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        assertEquals(sum, window.sum(), EPSILON);
+        assertEquals(count, window.count());
+        if (count > 0) {
+            assertEquals(min, window.min(), EPSILON);
+            assertEquals(max, window.max(), EPSILON);
+        }
+    }
+}